@@ -0,0 +1,76 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cutting a message into packets: Packet.splitMessage, which builds every packet up front,
+ * against encoding each packet from a MessageSource as SelectiveRepeatSender.transmit does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class FragmentationBenchmark {
+
+    @Param({"1024", "1048576", "104857600"})
+    int messageLength;
+
+    @Param({"1024", "8192"})
+    int maxPayload;
+
+    private byte[] message;
+    private MessageSource source;
+    private ByteBuffer sendBuffer;
+    private final InetSocketAddress server = new InetSocketAddress("localhost", 8007);
+    private final InetSocketAddress router = new InetSocketAddress("localhost", 3000);
+    private int peerAddress;
+
+    @Setup
+    public void setUp() {
+        message = new byte[messageLength];
+        source = MessageSource.of(message);
+        sendBuffer = ByteBuffer.allocateDirect(Packet.MIN_LEN + maxPayload);
+        peerAddress = PacketView.toInt(server.getAddress());
+    }
+
+    @Benchmark
+    public HashMap<Long, Packet> splitMessage() {
+        return Packet.splitMessage(message, router, server, 2, maxPayload);
+    }
+
+    @Benchmark
+    public long encodeFromSource() throws IOException {
+        long checksum = 0;
+        long sequenceNumber = 2;
+        for (long offset = 0; offset < source.length(); offset += maxPayload) {
+            sendBuffer.clear();
+            PacketView.putHeader(sendBuffer, Packet.PacketType.DATA, sequenceNumber++, peerAddress, server.getPort());
+            sendBuffer.limit(sendBuffer.position() + (int) Math.min(maxPayload, source.length() - offset));
+            long position = offset;
+            while (sendBuffer.hasRemaining()) {
+                position += source.read(sendBuffer, position);
+            }
+            sendBuffer.flip();
+            checksum += sendBuffer.remaining();
+        }
+        return checksum;
+    }
+}
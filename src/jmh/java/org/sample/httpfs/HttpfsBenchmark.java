@@ -0,0 +1,114 @@
+package org.sample.httpfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request parsing and response generation in httpfs, from the reassembled request to the
+ * MessageSource the sender streams, for the common GET and POST cases.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpfsBenchmark {
+
+    private static final String GET_SMALL = "GET /small.txt HTTP/1.0\r\nHost: localhost\r\n\r\n";
+    private static final String GET_LARGE = "GET /large.bin HTTP/1.0\r\nHost: localhost\r\n\r\n";
+    private static final String GET_DIRECTORY = "GET / HTTP/1.0\r\nHost: localhost\r\n\r\n";
+    private static final String GET_MISSING = "GET /missing.txt HTTP/1.0\r\nHost: localhost\r\n\r\n";
+
+    private Path directory;
+    private httpfs fileServer;
+    private byte[] getRequest;
+    private byte[] postRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("httpfs-bench");
+        Files.write(directory.resolve("small.txt"), new byte[1024]);
+        Files.write(directory.resolve("large.bin"), new byte[4 << 20]);
+        fileServer = new httpfs(directory.toString(), false);
+        getRequest = GET_SMALL.getBytes(UTF_8);
+        postRequest = ("POST /upload.txt HTTP/1.0\r\nContent-Length: 1024\r\n\r\n" + new String(new char[1024]).replace('\0', 'x'))
+                .getBytes(UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long getCachedFile() throws IOException {
+        return respond(GET_SMALL);
+    }
+
+    @Benchmark
+    public long getStreamedFile() throws IOException {
+        return respond(GET_LARGE);
+    }
+
+    @Benchmark
+    public long getDirectory() throws IOException {
+        return respond(GET_DIRECTORY);
+    }
+
+    @Benchmark
+    public long getMissing() throws IOException {
+        return respond(GET_MISSING);
+    }
+
+    /**
+     * A GET as the server sees it: the head arrives through a RequestSink, then httpfs answers.
+     */
+    @Benchmark
+    public long getThroughRequestSink() throws IOException {
+        try (RequestSink request = new RequestSink(fileServer)) {
+            request.write(getRequest, getRequest.length);
+            try (MessageSource response = fileServer.respond(request)) {
+                return response.length();
+            }
+        }
+    }
+
+    /**
+     * A POST whose body goes to a temporary file and is moved into place on commit.
+     */
+    @Benchmark
+    public long postThroughRequestSink() throws IOException {
+        try (RequestSink request = new RequestSink(fileServer)) {
+            request.write(postRequest, postRequest.length);
+            try (MessageSource response = fileServer.respond(request)) {
+                return response.length();
+            }
+        }
+    }
+
+    private long respond(String request) throws IOException {
+        try (MessageSource response = fileServer.respond(request)) {
+            return response.length();
+        }
+    }
+}
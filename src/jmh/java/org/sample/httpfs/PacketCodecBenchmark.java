@@ -0,0 +1,90 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of one datagram: the allocating Packet codec next to the
+ * PacketView/putHeader path the sender and receivers use.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+    @Param({"1024", "8192"})
+    int payloadLength;
+
+    private Packet packet;
+    private ByteBuffer encoded;
+    private ByteBuffer direct;
+    private byte[] payload;
+    private int peerAddress;
+    private final PacketView view = new PacketView();
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = new byte[payloadLength];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        InetAddress localhost = InetAddress.getLoopbackAddress();
+        peerAddress = PacketView.toInt(localhost);
+        packet = new Packet.Builder()
+                .setType(Packet.PacketType.DATA)
+                .setSequenceNumber(42)
+                .setPeerAddress(localhost)
+                .setPortNumber(8007)
+                .setPayload(payload)
+                .create();
+        encoded = packet.toBuffer();
+        direct = ByteBuffer.allocateDirect(Packet.MIN_LEN + payloadLength);
+    }
+
+    @Benchmark
+    public ByteBuffer packetToBuffer() {
+        return packet.toBuffer();
+    }
+
+    @Benchmark
+    public Packet packetFromBuffer() throws IOException {
+        return Packet.fromBuffer(encoded.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer putHeaderIntoDirectBuffer() {
+        direct.clear();
+        PacketView.putHeader(direct, Packet.PacketType.DATA, 42, peerAddress, 8007);
+        direct.put(payload);
+        direct.flip();
+        return direct;
+    }
+
+    @Benchmark
+    public void viewDecode(Blackhole blackhole) {
+        view.wrap(encoded);
+        blackhole.consume(view.isValid());
+        blackhole.consume(view.getType());
+        blackhole.consume(view.getSequenceNumber());
+        blackhole.consume(view.getPeerKey());
+        blackhole.consume(view.getPayloadLength());
+    }
+}
@@ -0,0 +1,85 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Putting a received message back together from its datagrams with a ReassemblyBuffer,
+ * in order and with every pair of packets swapped, into memory or into a discarding sink.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReassemblyBenchmark {
+
+    @Param({"1048576"})
+    int messageLength;
+
+    @Param({"1024", "8192"})
+    int maxPayload;
+
+    @Param({"true", "false"})
+    boolean inOrder;
+
+    private ByteBuffer[] datagrams;
+    private final PacketView view = new PacketView();
+    private long sunk;
+
+    @Setup
+    public void setUp() {
+        int dataPackets = (messageLength + maxPayload - 1) / maxPayload;
+        datagrams = new ByteBuffer[dataPackets + 1];
+        for (int i = 0; i <= dataPackets; i++) {
+            boolean fin = i == dataPackets;
+            int length = fin ? 3 : Math.min(maxPayload, messageLength - i * maxPayload);
+            ByteBuffer buf = ByteBuffer.allocateDirect(Packet.MIN_LEN + length);
+            PacketView.putHeader(buf, fin ? Packet.PacketType.FIN : Packet.PacketType.DATA, 2 + i, 0x7f000001, 8007);
+            while (buf.hasRemaining()) {
+                buf.put((byte) i);
+            }
+            buf.flip();
+            datagrams[i] = buf;
+        }
+        if (!inOrder) {
+            for (int i = 0; i + 1 < datagrams.length; i += 2) {
+                ByteBuffer swapped = datagrams[i];
+                datagrams[i] = datagrams[i + 1];
+                datagrams[i + 1] = swapped;
+            }
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer reassembleInMemory() {
+        ReassemblyBuffer reassembly = new ReassemblyBuffer(2, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE, maxPayload);
+        for (ByteBuffer datagram : datagrams) {
+            reassembly.offer(view.wrap(datagram));
+        }
+        return reassembly.getMessage();
+    }
+
+    @Benchmark
+    public long reassembleIntoSink() {
+        ReassemblyBuffer reassembly = new ReassemblyBuffer(2, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE, maxPayload,
+                (payload, length) -> sunk += payload[0] + length);
+        for (ByteBuffer datagram : datagrams) {
+            reassembly.offer(view.wrap(datagram));
+        }
+        return reassembly.getDeliveredBytes() + sunk;
+    }
+}
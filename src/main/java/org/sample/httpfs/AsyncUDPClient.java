@@ -0,0 +1,417 @@
+package org.sample.httpfs;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * AsyncUDPClient sends requests to one server from any number of threads without blocking them:
+ * send() returns a CompletableFuture of the Response right away.
+ * A single event loop thread multiplexes all requests in flight over one Selector. The protocol
+ * tells connections apart by client endpoint, so each request in flight has a keep-alive
+ * ClientConnection on a port of its own; at most maxConnections are open, and idle ones are
+ * reused for the next request instead of paying for another handshake. Requests beyond that
+ * wait in submission order, and at most maxPending requests may be waiting or in flight; send()
+ * fails further ones with a RejectedExecutionException. A request that has no response within
+ * the timeout, counted from send(), fails with a TimeoutException.
+ * Futures are completed on the event loop thread, so heavy work belongs in the *Async stages.
+ */
+public class AsyncUDPClient implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    public static final int DEFAULT_MAX_PENDING = 1024;
+    public static final long DEFAULT_TIMEOUT = 30000;
+    private static final long EVICTION_INTERVAL = 1000;
+    // Same as UDPClient
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * A request with its future, from send() until it is answered or fails.
+     */
+    static final class Call {
+        final byte[] request;
+        final long deadline;
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+
+        Call(byte[] request, long deadline) {
+            this.request = request;
+            this.deadline = deadline;
+        }
+    }
+
+    private final InetSocketAddress serverAddr;
+    private final InetSocketAddress routerAddr;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Call> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean closed = false;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile int maxPayload = Packet.PREFERRED_PAYLOAD_LEN;
+    private volatile int parityGroupSize = 0;
+    private volatile Supplier<CongestionControl> congestionControl =
+            () -> new NewRenoCongestionControl(SelectiveRepeatSender.DEFAULT_WINDOW_SIZE);
+    private volatile TransferStats stats = UDPClient.sharedStats();
+    private volatile int connectionCount;
+
+    // Owned by the event loop thread
+    private final ArrayDeque<Call> waiting = new ArrayDeque<>();
+    private final List<ClientConnection> connections = new ArrayList<>();
+    private final PacketView inbound = new PacketView();
+    private ByteBuffer buffer;
+    private long nextEviction = 0;
+
+    /**
+     * Starts the event loop thread; connections are opened once requests arrive.
+     */
+    public AsyncUDPClient(InetSocketAddress serverAddr, InetSocketAddress routerAddr) throws IOException {
+        this.serverAddr = serverAddr;
+        this.routerAddr = routerAddr;
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, "udp-client-loop");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Sends a request, e.g. "GET /file HTTP/1.0\r\n\r\n"; may be called from any thread.
+     */
+    public CompletableFuture<Response> send(byte[] request) {
+        Call call = new Call(request, System.currentTimeMillis() + timeout);
+        if (closed) {
+            call.future.completeExceptionally(new IOException("Client closed"));
+            return call.future;
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            call.future.completeExceptionally(new RejectedExecutionException(maxPending + " requests pending already"));
+            return call.future;
+        }
+        call.future.whenComplete((response, failure) -> pending.decrementAndGet());
+        inbox.offer(call);
+        selector.wakeup();
+        if (closed) {
+            // The loop may have drained the inbox for the last time before the offer
+            failAll(inbox, new IOException("Client closed"));
+        }
+        return call.future;
+    }
+
+    public CompletableFuture<Response> get(String path) {
+        return send(("GET " + path + " HTTP/1.0\r\nHost: " + serverAddr.getHostString() + "\r\n\r\n").getBytes(UTF_8));
+    }
+
+    public CompletableFuture<Response> post(String path, byte[] body) {
+        byte[] head = ("POST " + path + " HTTP/1.0\r\nContent-Length: " + body.length
+                + "\r\nHost: " + serverAddr.getHostString() + "\r\n\r\n").getBytes(UTF_8);
+        byte[] request = new byte[head.length + body.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(body, 0, request, head.length, body.length);
+        return send(request);
+    }
+
+    /**
+     * Sets how many connections, and so requests, may be in flight at once.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets how many requests may be waiting or in flight before send() rejects new ones.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * Sets the timeout of requests sent from now on, in milliseconds.
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeout = timeoutMillis;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the largest DATA payload proposed by connections opened from now on.
+     */
+    public void setMaxPayload(int maxPayload) {
+        this.maxPayload = Math.max(1, Math.min(maxPayload, Packet.MAX_PAYLOAD_LEN));
+    }
+
+    /**
+     * Makes connections opened from now on ask for parity with the given group size; 0 turns it off.
+     */
+    public void setParityGroupSize(int groupSize) {
+        this.parityGroupSize = Math.max(0, Math.min(groupSize, ParityEncoder.MAX_GROUP_SIZE));
+    }
+
+    /**
+     * Sets how the congestion control of each new connection is created; NewReno by default.
+     */
+    public void setCongestionControl(Supplier<CongestionControl> congestionControl) {
+        this.congestionControl = congestionControl;
+    }
+
+    /**
+     * Counts the packets, handshakes and requests of connections opened from now on into stats
+     * instead of UDPClient.sharedStats().
+     */
+    public void setStats(TransferStats stats) {
+        this.stats = stats;
+    }
+
+    public TransferStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Requests waiting or in flight.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Stops the event loop and fails every request that has no response yet.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        failAll(inbox, new IOException("Client closed"));
+    }
+
+    private void run() {
+        // Room for any datagram: one larger than negotiated is rejected, never silently truncated
+        buffer = BufferPool.forLength(Packet.MAX_DATAGRAM_LEN).acquire();
+        try {
+            eventLoop();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closed = true;
+            IOException cause = new IOException("Client closed");
+            failAll(inbox, cause);
+            failAll(waiting, cause);
+            for (ClientConnection connection : connections) {
+                connection.close(cause);
+            }
+            connections.clear();
+            connectionCount = 0;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            BufferPool.recycle(buffer);
+            buffer = null;
+        }
+    }
+
+    private void eventLoop() throws IOException {
+        while (!closed) {
+            long timeout = nextDeadline() - System.currentTimeMillis();
+            if (timeout > 0) {
+                selector.select(timeout);
+            } else {
+                selector.selectNow();
+            }
+            receivePackets();
+
+            long now = System.currentTimeMillis();
+            Call call;
+            while ((call = inbox.poll()) != null) {
+                waiting.addLast(call);
+            }
+            runTimers(now);
+            // Failed connections make room for waiting requests right away, not at the next eviction tick
+            evictConnections(now);
+            startWaiting(now);
+            if (now >= nextEviction) {
+                nextEviction = now + EVICTION_INTERVAL;
+            }
+        }
+    }
+
+    private long nextDeadline() {
+        long deadline = nextEviction;
+        if (!waiting.isEmpty()) {
+            deadline = Math.min(deadline, waiting.peekFirst().deadline);
+        }
+        for (ClientConnection connection : connections) {
+            deadline = Math.min(deadline, connection.nextDeadline());
+        }
+        return deadline;
+    }
+
+    /**
+     * Drains the channels of every connection the Selector found readable.
+     */
+    private void receivePackets() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            ClientConnection connection = (ClientConnection) key.attachment();
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            try {
+                while (true) {
+                    buffer.clear();
+                    if (channel.receive(buffer) == null) break;
+                    buffer.flip();
+                    if (inbound.wrap(buffer).isValid()) {
+                        connection.onPacket(inbound, System.currentTimeMillis());
+                    }
+                }
+            } catch (IOException e) {
+                connection.getStats().onClosedOnError();
+                connection.close(e);
+            }
+        }
+    }
+
+    private void runTimers(long now) {
+        for (ClientConnection connection : connections) {
+            if (connection.nextDeadline() <= now) {
+                try {
+                    connection.onTimer(now);
+                } catch (IOException e) {
+                    connection.getStats().onClosedOnError();
+                    connection.close(e);
+                }
+            }
+        }
+        // Waiting requests expire in submission order, as long as the timeout was not changed in between
+        while (!waiting.isEmpty() && waiting.peekFirst().deadline <= now) {
+            waiting.pollFirst().future.completeExceptionally(new TimeoutException("No connection within the request timeout"));
+        }
+    }
+
+    /**
+     * Hands waiting requests to idle connections, opening new ones while fewer than maxConnections are open.
+     */
+    private void startWaiting(long now) {
+        while (!waiting.isEmpty()) {
+            Call call = waiting.peekFirst();
+            if (call.future.isDone()) {
+                // Cancelled by the caller
+                waiting.pollFirst();
+                continue;
+            }
+            ClientConnection connection = idleConnection(now);
+            try {
+                if (connection != null) {
+                    connection.send(call, now);
+                } else if (connections.size() < maxConnections) {
+                    open(call, now);
+                } else {
+                    return;
+                }
+                waiting.pollFirst();
+            } catch (IOException e) {
+                waiting.pollFirst();
+                if (connection != null) {
+                    connection.close(e);
+                } else {
+                    call.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the most recently used reusable connection: it is the least likely to have timed out on the server.
+     */
+    private ClientConnection idleConnection(long now) {
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            ClientConnection connection = connections.get(i);
+            if (connection.isReusable(now)) {
+                // Keep the list in order of use, so the next search finds the most recent one first again
+                connections.remove(i);
+                connections.add(connection);
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private void open(Call call, long now) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        ClientConnection connection;
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(routerAddr.getAddress(), 0));
+            channel.configureBlocking(false);
+            connection = new ClientConnection(channel, routerAddr, serverAddr, maxPayload, parityGroupSize,
+                    congestionControl.get(), stats);
+            channel.register(selector, OP_READ, connection);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        connections.add(connection);
+        connectionCount = connections.size();
+        connection.connect(call, now);
+    }
+
+    private void evictConnections(long now) {
+        Iterator<ClientConnection> it = connections.iterator();
+        while (it.hasNext()) {
+            ClientConnection connection = it.next();
+            if (connection.isExpired(now)) {
+                connection.close(new IOException("Connection closed"));
+                it.remove();
+            }
+        }
+        connectionCount = connections.size();
+    }
+
+    private static void failAll(Queue<Call> calls, IOException cause) {
+        Call call;
+        while ((call = calls.poll()) != null) {
+            call.future.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPool hands out direct ByteBuffers of one size and takes them back for reuse.
+ * At most maxPooled idle buffers are kept; acquire falls back to allocating when the pool
+ * is empty and release drops buffers once it is full, so the pool never grows without bound.
+ * A buffer must not be used after it has been released.
+ * Shared pools exist for the default, the preferred and the largest possible datagram;
+ * forLength picks the smallest that fits.
+ */
+public class BufferPool {
+
+    private static final BufferPool SHARED = new BufferPool(Packet.MAX_LEN, 1024);
+    private static final BufferPool[] SIZE_CLASSES = {
+        SHARED,
+        new BufferPool(Packet.MIN_LEN + Packet.PREFERRED_PAYLOAD_LEN, 256),
+        new BufferPool(Packet.MAX_DATAGRAM_LEN, 32)
+    };
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * The pool of datagram-sized buffers shared by the client, server and router.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * The smallest shared pool whose buffers hold length bytes.
+     */
+    public static BufferPool forLength(int length) {
+        for (BufferPool pool : SIZE_CLASSES) {
+            if (length <= pool.bufferSize) {
+                return pool;
+            }
+        }
+        throw new IllegalArgumentException("No datagram is " + length + " bytes long");
+    }
+
+    /**
+     * Gives a buffer back to whichever shared pool it came from.
+     */
+    public static void recycle(ByteBuffer buf) {
+        if (buf != null && buf.capacity() <= Packet.MAX_DATAGRAM_LEN) {
+            forLength(buf.capacity()).release(buf);
+        }
+    }
+
+    /**
+     * Returns a cleared big-endian buffer of bufferSize bytes.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = idle.poll();
+        if (buf == null) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+        }
+        idleCount.decrementAndGet();
+        hits.increment();
+        buf.clear();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return buf;
+    }
+
+    /**
+     * Gives a buffer back; buffers of another size or beyond maxPooled are left to the GC.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize || !buf.isDirect()) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxPooled) {
+            idleCount.decrementAndGet();
+            drops.increment();
+            return;
+        }
+        idle.offer(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of released buffers discarded because the pool was full.
+     */
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool[size=%d, idle=%d, hits=%d, misses=%d, drops=%d]",
+                bufferSize, getIdleCount(), getHits(), getMisses(), getDrops());
+    }
+}
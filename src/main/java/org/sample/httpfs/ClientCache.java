@@ -0,0 +1,137 @@
+package org.sample.httpfs;
+
+import java.net.InetSocketAddress;
+
+/**
+ * ClientCache keeps recent GET responses on the client, least recently used first out, so a
+ * repeated GET only asks the server whether the file changed. Only 200 responses carrying an
+ * ETag or Last-Modified are kept; their validators go out as If-None-Match/If-Modified-Since,
+ * and a 304 Not Modified is answered from the cache. The cache is bounded by the total size of
+ * the responses it holds and only takes responses up to maxEntryBytes.
+ */
+public class ClientCache {
+
+    private static final ClientCache SHARED = new ClientCache(32L << 20, 4L << 20);
+
+    /**
+     * A cached response together with its validators, null where the server sent none.
+     */
+    public static final class Entry {
+        final Response response;
+        final String etag;
+        final String lastModified;
+        final int length;
+
+        Entry(Response response) {
+            this.response = response;
+            this.etag = response.getHeader("ETag");
+            this.lastModified = response.getHeader("Last-Modified");
+            this.length = response.getMessage().remaining();
+        }
+
+        /**
+         * The conditional request headers for this entry, each ending in CRLF.
+         */
+        public String conditionalHeaders() {
+            StringBuilder headers = new StringBuilder();
+            if (etag != null) {
+                headers.append("If-None-Match: ").append(etag).append("\r\n");
+            }
+            if (lastModified != null) {
+                headers.append("If-Modified-Since: ").append(lastModified).append("\r\n");
+            }
+            return headers.toString();
+        }
+    }
+
+    private final long maxEntryBytes;
+    private final SizeBoundedLru<String, Entry> entries;
+    private long revalidations;
+    private long downloads;
+
+    public ClientCache(long maxBytes, long maxEntryBytes) {
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.entries = new SizeBoundedLru<>(maxBytes, entry -> entry.length);
+    }
+
+    public static ClientCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Key of the resource at path, query included, on a server.
+     */
+    public static String key(InetSocketAddress serverAddr, String path) {
+        return serverAddr.getHostString() + ":" + serverAddr.getPort() + path;
+    }
+
+    /**
+     * Returns the cached response for key, or null if there is none.
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Takes the server's answer to a GET that was sent with the conditional headers of cached,
+     * or without any if cached is null, and returns the response to hand to the caller:
+     * the cached one for a 304, the new one otherwise. A new 200 replaces the entry, any other
+     * status drops it.
+     */
+    public synchronized Response update(String key, Entry cached, Response response) {
+        if (response.getStatus() == 304 && cached != null) {
+            revalidations++;
+            // Put back in case it was evicted while the request was under way
+            entries.put(key, cached);
+            return cached.response;
+        }
+        entries.remove(key);
+        if (response.getStatus() == 200) {
+            downloads++;
+            Entry entry = new Entry(response);
+            if ((entry.etag != null || entry.lastModified != null) && entry.length <= maxEntryBytes) {
+                entries.put(key, entry);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Drops the entry for key, e.g. after a POST to it.
+     */
+    public synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return entries.getBytes();
+    }
+
+    /**
+     * GETs answered from the cache after a 304.
+     */
+    public synchronized long getRevalidations() {
+        return revalidations;
+    }
+
+    /**
+     * GETs that transferred the whole file.
+     */
+    public synchronized long getDownloads() {
+        return downloads;
+    }
+
+    public synchronized long getEvictions() {
+        return entries.getEvictions();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ClientCache[entries=%d, bytes=%d, revalidations=%d, downloads=%d, evictions=%d]",
+                entries.size(), entries.getBytes(), revalidations, downloads, entries.getEvictions());
+    }
+}
@@ -0,0 +1,288 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ClientConnection is the state machine of one keep-alive connection of an AsyncUDPClient.
+ * It is the non-blocking counterpart of UDPClient: the client's event loop feeds it packets
+ * and timer ticks, and it never waits itself. A connection carries one request at a time;
+ * the next one is numbered right after the previous response's FIN, without a new handshake.
+ * Retransmissions of the previous response that arrive while IDLE are still acknowledged.
+ */
+public class ClientConnection {
+
+    public static enum State {
+        HANDSHAKE, IDLE, SENDING, CLOSED
+    }
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress router;
+    private final InetSocketAddress server;
+    private final RttEstimator rtt = new RttEstimator();
+    private final CongestionControl congestionControl;
+    private final TransferStats stats;
+    private final ClientHandshake handshake;
+    private SelectiveRepeatSender sender;
+    private SelectiveRepeatReceiver receiver;
+    private AsyncUDPClient.Call call;
+    private State state = State.HANDSHAKE;
+    private long synSentAt;
+    private long synDeadline = Long.MAX_VALUE;
+    private long handshakeStartedAt;
+    private long requestStartedAt;
+    private long nextSequenceNumber = ClientHandshake.FIRST_DATA_SEQUENCE;
+    private long lastActivity;
+    private long lastUsed;
+
+    /**
+     * channel must be bound and non-blocking; the connection closes it. maxPayload and
+     * parityGroupSize are proposed in the handshake, as UDPClient does.
+     */
+    public ClientConnection(DatagramChannel channel, InetSocketAddress router, InetSocketAddress server, int maxPayload,
+                            int parityGroupSize, CongestionControl congestionControl, TransferStats stats) {
+        this.channel = channel;
+        this.router = router;
+        this.server = server;
+        this.congestionControl = congestionControl;
+        this.stats = stats;
+        this.handshake = new ClientHandshake(ThreadLocalRandom.current().nextInt(), true, maxPayload, parityGroupSize);
+    }
+
+    /**
+     * Starts the handshake; call is sent as soon as the server answers.
+     */
+    void connect(AsyncUDPClient.Call call, long now) throws IOException {
+        this.call = call;
+        this.lastActivity = now;
+        this.handshakeStartedAt = System.nanoTime();
+        sendSyn(now);
+    }
+
+    /**
+     * Sends a request on an IDLE connection.
+     */
+    void send(AsyncUDPClient.Call call, long now) throws IOException {
+        if (state != State.IDLE) {
+            throw new IllegalStateException("Connection is " + state);
+        }
+        this.call = call;
+        if (sender == null) {
+            sender = handshake.newSender(channel, router, rtt, congestionControl, stats);
+        }
+        sender.send(MessageSource.of(call.request), nextSequenceNumber,
+                PacketView.toInt(server.getAddress()), server.getPort());
+        // The server numbers its response right after our FIN
+        if (receiver != null) {
+            receiver.close();
+        }
+        receiver = handshake.newReceiver(sender.getEndSequenceNumber(), stats);
+        state = State.SENDING;
+        requestStartedAt = System.nanoTime();
+        sender.pump(now);
+    }
+
+    /**
+     * Handles one inbound packet of this connection.
+     */
+    public void onPacket(PacketView packet, long now) throws IOException {
+        lastActivity = now;
+        switch (packet.getType()) {
+            case SYNACK:
+                handleSynAck(packet, now);
+                break;
+            case ACK:
+                if (state == State.SENDING) {
+                    sender.onAck(packet, now);
+                    onTimer(now);
+                }
+                break;
+            case DATA:
+            case FIN:
+            case PARITY:
+                handleDataPacket(packet, now);
+                break;
+            default:
+                stats.onInvalid();
+        }
+    }
+
+    /**
+     * Retransmits what is due and fails the request once its deadline has passed.
+     */
+    public void onTimer(long now) throws IOException {
+        if (call != null && now >= call.deadline) {
+            fail(new TimeoutException("No response within the request timeout"));
+            return;
+        }
+        if (state == State.HANDSHAKE && now >= synDeadline) {
+            rtt.backoff();
+            stats.onTimeout();
+            if (handshake.getAttempts() >= SelectiveRepeatSender.MAX_RETRIES) {
+                fail(new IOException("Max retries reached for packet 0"));
+            } else {
+                sendSyn(now);
+            }
+        } else if (state == State.SENDING) {
+            sender.pump(now);
+            if (sender.hasFailed()) {
+                fail(new IOException("Server stopped acknowledging the request"));
+            }
+        }
+    }
+
+    /**
+     * Returns the time of the next retransmission or request deadline, or Long.MAX_VALUE if no timer is armed.
+     */
+    public long nextDeadline() {
+        long next = call == null ? Long.MAX_VALUE : call.deadline;
+        if (state == State.HANDSHAKE) {
+            next = Math.min(next, synDeadline);
+        } else if (state == State.SENDING && !sender.isDone()) {
+            next = Math.min(next, sender.nextDeadline());
+        }
+        return next;
+    }
+
+    /**
+     * Returns true if the connection may carry another request at time now.
+     */
+    boolean isReusable(long now) {
+        return state == State.IDLE && handshake.isPersistent() && now - lastUsed < UDPClient.IDLE_TIMEOUT;
+    }
+
+    /**
+     * Returns true once the connection should be closed: it failed, it idled out, or the server did not
+     * keep it and has gone quiet for RttEstimator.MAX_RTO, so a lost ACK of the FIN was made up for.
+     */
+    boolean isExpired(long now) {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state != State.IDLE) {
+            return false;
+        }
+        return handshake.isPersistent() ? now - lastUsed >= UDPClient.IDLE_TIMEOUT : now - lastActivity >= RttEstimator.MAX_RTO;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getConnectionId() {
+        return handshake.getConnectionId();
+    }
+
+    public TransferStats getStats() {
+        return stats;
+    }
+
+    /**
+     * DATA payload size agreed on with the server.
+     */
+    public int getNegotiatedPayload() {
+        return handshake.getNegotiatedPayload();
+    }
+
+    /**
+     * Parity group size agreed on with the server, 0 if parity is off.
+     */
+    public int getNegotiatedParityGroupSize() {
+        return handshake.getNegotiatedParityGroupSize();
+    }
+
+    /**
+     * Fails the request in progress, if any, and returns the pooled buffers and the channel.
+     */
+    public void close(Throwable cause) {
+        if (call != null) {
+            fail(cause);
+        }
+        state = State.CLOSED;
+        if (sender != null) {
+            sender.close();
+            sender = null;
+        }
+        if (receiver != null) {
+            receiver.close();
+            receiver = null;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e);
+        }
+    }
+
+    private void sendSyn(long now) throws IOException {
+        handshake.nextSyn(server).sendPacket(channel, router);
+        synSentAt = now;
+        synDeadline = now + rtt.getRto();
+    }
+
+    private void handleSynAck(PacketView packet, long now) throws IOException {
+        // Stray SYN-ACKs of a retransmitted SYN, or of an earlier connection on the port, are ignored
+        if (state != State.HANDSHAKE || !handshake.isReply(packet)) {
+            return;
+        }
+        if (handshake.getAttempts() == 1) {
+            long sample = now - synSentAt;
+            rtt.sample(sample);
+            stats.getRtt().recordMillis(sample);
+        }
+        handshake.accept(packet);
+        stats.getHandshakeTime().record(System.nanoTime() - handshakeStartedAt);
+        state = State.IDLE;
+        synDeadline = Long.MAX_VALUE;
+        lastUsed = now;
+        if (call != null) {
+            send(call, now);
+        }
+    }
+
+    private void handleDataPacket(PacketView packet, long now) throws IOException {
+        if (receiver == null) {
+            return;
+        }
+        // The server only answers a complete request, so this covers ACKs that were lost.
+        // Late packets of the previous response on a keep-alive connection prove nothing.
+        if (state == State.SENDING && packet.getSequenceNumber() >= sender.getEndSequenceNumber()) {
+            sender.acknowledgeAll();
+        }
+        if (receiver.accept(packet)) {
+            receiver.sendAck(channel, router, packet);
+        }
+        if (state == State.SENDING && sender.isDone() && receiver.isComplete()) {
+            complete(now);
+        }
+    }
+
+    private void complete(long now) {
+        stats.getRequestLatency().record(System.nanoTime() - requestStartedAt);
+        nextSequenceNumber = receiver.getNextExpected();
+        state = State.IDLE;
+        lastUsed = now;
+        AsyncUDPClient.Call done = call;
+        call = null;
+        try {
+            done.future.complete(Response.parse(receiver.getMessage()));
+        } catch (IllegalArgumentException e) {
+            done.future.completeExceptionally(new IOException("Malformed response: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Fails the request in progress; the exchange is cut off halfway, so the connection cannot be reused.
+     */
+    private void fail(Throwable cause) {
+        state = State.CLOSED;
+        AsyncUDPClient.Call failed = call;
+        call = null;
+        if (failed != null) {
+            failed.future.completeExceptionally(cause);
+        }
+    }
+}
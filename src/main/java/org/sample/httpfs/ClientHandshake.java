@@ -0,0 +1,153 @@
+package org.sample.httpfs;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * ClientHandshake is the client side of the handshake, shared by the blocking UDPClient and the
+ * non-blocking ClientConnection: it builds the SYNs, recognizes the matching SYN-ACK, settles
+ * what was agreed on, and sets up the sender and receiver of the connection accordingly.
+ * Each SYN is padded to the proposed payload size; once PROBE_ATTEMPTS of them went unanswered
+ * the path may not carry datagrams that large, so the remaining attempts propose the default size.
+ */
+public class ClientHandshake {
+
+    static final long FIRST_DATA_SEQUENCE = 2;
+    static final int PROBE_ATTEMPTS = 4;
+
+    private final int connectionId;
+    private final boolean keepAlive;
+    private final int maxPayload;
+    private final int parityGroupSize;
+    private int proposal;
+    private int attempts;
+    private boolean fellBack;
+    private boolean persistent;
+    private int negotiatedPayload = Packet.DEFAULT_PAYLOAD_LEN;
+    private int negotiatedParityGroupSize;
+
+    /**
+     * maxPayload and parityGroupSize are what the client proposes; 0 asks for no parity.
+     */
+    public ClientHandshake(int connectionId, boolean keepAlive, int maxPayload, int parityGroupSize) {
+        this.connectionId = connectionId;
+        this.keepAlive = keepAlive;
+        this.maxPayload = maxPayload;
+        this.parityGroupSize = parityGroupSize;
+        this.proposal = maxPayload;
+    }
+
+    /**
+     * Returns the SYN of the next attempt, falling back to the default payload size when the probe attempts are used up.
+     */
+    public Packet nextSyn(InetSocketAddress server) {
+        fellBack = attempts == PROBE_ATTEMPTS && proposal > Packet.DEFAULT_PAYLOAD_LEN;
+        if (fellBack) {
+            proposal = Packet.DEFAULT_PAYLOAD_LEN;
+        }
+        attempts++;
+        Handshake handshake = new Handshake(connectionId, keepAlive ? Handshake.KEEP_ALIVE : 0, proposal, parityGroupSize);
+        return new Packet.Builder()
+            .setType(Packet.PacketType.SYN)
+            .setSequenceNumber(0)
+            .setPortNumber(server.getPort())
+            .setPeerAddress(server.getAddress())
+            .setPayload(handshake.toBytes(proposal))
+            .create();
+    }
+
+    /**
+     * Returns true if the last nextSyn() gave up on the proposed payload size.
+     */
+    public boolean fellBack() {
+        return fellBack;
+    }
+
+    /**
+     * Returns true if packet is the SYN-ACK of this handshake, not a stray one of an earlier connection on the port.
+     */
+    public boolean isReply(PacketView packet) {
+        return packet.getType() == Packet.PacketType.SYNACK
+            && packet.getSequenceNumber() == 1
+            && Handshake.fromBuffer(packet.payload()).getConnectionId() == connectionId;
+    }
+
+    /**
+     * Settles the payload size and parity group size from the server's SYN-ACK. Parity is off
+     * if the payload leaves no room for its header.
+     */
+    public void accept(PacketView reply) {
+        Handshake handshake = Handshake.fromBuffer(reply.payload());
+        persistent = handshake.isKeepAlive();
+        negotiatedPayload = Math.min(handshake.getMaxPayload(), proposal);
+        negotiatedParityGroupSize = Math.min(handshake.getParityGroupSize(), parityGroupSize);
+        if (negotiatedPayload <= ParityEncoder.HEADER_LENGTH) {
+            negotiatedParityGroupSize = 0;
+        }
+    }
+
+    /**
+     * Sender of the connection's requests, with parity if it was agreed on.
+     */
+    public SelectiveRepeatSender newSender(DatagramChannel channel, SocketAddress router, RttEstimator rtt,
+                                           CongestionControl congestionControl, TransferStats stats) {
+        SelectiveRepeatSender sender = new SelectiveRepeatSender(channel, router, dataPayload(), rtt, congestionControl);
+        sender.setStats(stats);
+        if (negotiatedParityGroupSize > 0) {
+            sender.enableParity(negotiatedParityGroupSize);
+        }
+        return sender;
+    }
+
+    /**
+     * Receiver of a response numbered from firstSequenceNumber on, with parity if it was agreed on.
+     */
+    public SelectiveRepeatReceiver newReceiver(long firstSequenceNumber, TransferStats stats) {
+        SelectiveRepeatReceiver receiver = new SelectiveRepeatReceiver(firstSequenceNumber,
+                SelectiveRepeatSender.DEFAULT_WINDOW_SIZE, dataPayload(), null);
+        if (negotiatedParityGroupSize > 0) {
+            receiver.enableParity(negotiatedParityGroupSize);
+        }
+        receiver.setStats(stats);
+        return receiver;
+    }
+
+    private int dataPayload() {
+        return ParityEncoder.dataPayload(negotiatedPayload, negotiatedParityGroupSize);
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * SYNs sent so far.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int getMaxPayload() {
+        return maxPayload;
+    }
+
+    public int getProposal() {
+        return proposal;
+    }
+
+    /**
+     * Whether the server agreed to keep the connection for further requests.
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    public int getNegotiatedPayload() {
+        return negotiatedPayload;
+    }
+
+    public int getNegotiatedParityGroupSize() {
+        return negotiatedParityGroupSize;
+    }
+}
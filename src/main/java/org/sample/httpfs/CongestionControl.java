@@ -0,0 +1,33 @@
+package org.sample.httpfs;
+
+/**
+ * CongestionControl decides how many packets a SelectiveRepeatSender may have in flight.
+ * The sender reports the progress of the cumulative ACK, losses it found from SelectiveAcks
+ * and expired retransmission timers; it never sends more than its own window either.
+ * Sequence numbers passed in are those of the sender's current message.
+ */
+public interface CongestionControl {
+
+    /**
+     * Number of packets that may be in flight, at least 1.
+     */
+    int getWindow();
+
+    int getSlowStartThreshold();
+
+    /**
+     * Called when ACKs delivered acked packets; base is the new lowest unacknowledged sequence number.
+     */
+    void onAck(int acked, long base, long now);
+
+    /**
+     * Called when packets were found lost because later ones were ACKed.
+     * highestSent is the first sequence number not sent yet, inFlight the packets in flight before the loss.
+     */
+    void onLoss(long highestSent, int inFlight, long now);
+
+    /**
+     * Called once per retransmission timeout, with the packets that were in flight when it fired.
+     */
+    void onTimeout(long highestSent, int inFlight, long now);
+}
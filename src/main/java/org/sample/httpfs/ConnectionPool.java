@@ -0,0 +1,143 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * ConnectionPool keeps idle keep-alive UDPClient connections per server address,
+ * so a series of requests to one server pays for the handshake only once.
+ * Connections idle for longer than UDPClient.IDLE_TIMEOUT are closed instead of reused.
+ */
+public class ConnectionPool {
+
+    private static final ConnectionPool SHARED = new ConnectionPool(4);
+
+    private final int maxIdlePerServer;
+    private final Map<InetSocketAddress, ArrayDeque<UDPClient>> idle = new HashMap<>();
+    private long opened;
+    private long reused;
+    private volatile int parityGroupSize;
+
+    public ConnectionPool(int maxIdlePerServer) {
+        this.maxIdlePerServer = maxIdlePerServer;
+    }
+
+    public static ConnectionPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Makes connections opened from now on ask for parity with the given group size; 0 turns it off.
+     */
+    public void setParityGroupSize(int parityGroupSize) {
+        this.parityGroupSize = parityGroupSize;
+    }
+
+    /**
+     * Sends a request to the server on a pooled connection, opening one if none is idle,
+     * and returns the response. clientAddr is the address new connections bind to.
+     */
+    public String send(InetSocketAddress serverAddr, InetSocketAddress routerAddr, InetSocketAddress clientAddr, byte[] request) throws IOException {
+        return exchange(serverAddr, routerAddr, clientAddr, connection -> connection.request(request));
+    }
+
+    /**
+     * Same as send(), returning the parsed response.
+     */
+    public Response fetch(InetSocketAddress serverAddr, InetSocketAddress routerAddr, InetSocketAddress clientAddr, byte[] request) throws IOException {
+        return exchange(serverAddr, routerAddr, clientAddr, connection -> connection.fetch(request));
+    }
+
+    private interface Exchange<T> {
+        T run(UDPClient connection) throws IOException;
+    }
+
+    private <T> T exchange(InetSocketAddress serverAddr, InetSocketAddress routerAddr, InetSocketAddress clientAddr,
+                           Exchange<T> exchange) throws IOException {
+        UDPClient connection = acquire(serverAddr);
+        if (connection == null) {
+            connection = UDPClient.open(serverAddr, routerAddr, clientAddr, parityGroupSize);
+            synchronized (this) {
+                opened++;
+            }
+        }
+        try {
+            T response = exchange.run(connection);
+            release(serverAddr, connection);
+            return response;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private synchronized UDPClient acquire(InetSocketAddress serverAddr) {
+        ArrayDeque<UDPClient> connections = idle.get(serverAddr);
+        long now = System.currentTimeMillis();
+        while (connections != null && !connections.isEmpty()) {
+            // Most recently used first: it is the least likely to have timed out on the server
+            UDPClient connection = connections.pollLast();
+            if (connection.isReusable(now)) {
+                reused++;
+                return connection;
+            }
+            connection.close();
+        }
+        return null;
+    }
+
+    private synchronized void release(InetSocketAddress serverAddr, UDPClient connection) {
+        ArrayDeque<UDPClient> connections = idle.computeIfAbsent(serverAddr, k -> new ArrayDeque<>());
+        if (!connection.isPersistent() || connections.size() >= maxIdlePerServer) {
+            connection.close();
+            return;
+        }
+        connections.addLast(connection);
+    }
+
+    /**
+     * Closes every connection that can no longer be reused.
+     */
+    public synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (ArrayDeque<UDPClient> connections : idle.values()) {
+            Iterator<UDPClient> it = connections.iterator();
+            while (it.hasNext()) {
+                UDPClient connection = it.next();
+                if (!connection.isReusable(now)) {
+                    connection.close();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (ArrayDeque<UDPClient> connections : idle.values()) {
+            for (UDPClient connection : connections) {
+                connection.close();
+            }
+        }
+        idle.clear();
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (ArrayDeque<UDPClient> connections : idle.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    public synchronized long getOpened() {
+        return opened;
+    }
+
+    public synchronized long getReused() {
+        return reused;
+    }
+}
@@ -0,0 +1,133 @@
+package org.sample.httpfs;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * DelayScheduler hands items to a consumer after a per-item delay, using a single
+ * daemon thread draining a DelayQueue. Items due at the same time keep their arrival order.
+ * At most capacity items wait at once; what happens to further items is decided by the
+ * OverflowPolicy.
+ */
+public class DelayScheduler<T> implements AutoCloseable {
+
+    public enum OverflowPolicy {
+        /** Refuse the item, like a router whose buffer is full (tail drop). */
+        DROP,
+        /** Deliver the item immediately on the caller's thread, without delay. */
+        DELIVER_NOW
+    }
+
+    private final DelayQueue<Entry<T>> queue = new DelayQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong arrivals = new AtomicLong();
+    private final LongAdder overflows = new LongAdder();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Consumer<T> consumer;
+    private final Thread thread;
+
+    public DelayScheduler(String name, int capacity, OverflowPolicy policy, Consumer<T> consumer) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.consumer = consumer;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules item for delivery after delayMillis.
+     * Returns false only if the queue is full and the policy is DROP; the item then stays with the caller.
+     */
+    public boolean schedule(T item, long delayMillis) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            overflows.increment();
+            if (policy == OverflowPolicy.DROP) {
+                return false;
+            }
+            consumer.accept(item);
+            return true;
+        }
+        long at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        queue.put(new Entry<>(item, at, arrivals.getAndIncrement()));
+        return true;
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Entry<T> entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            size.decrementAndGet();
+            try {
+                consumer.accept(entry.item);
+            } catch (RuntimeException e) {
+                // One failed delivery must not stop the scheduler
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Number of items waiting for their delay to expire.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of items that found the queue full, whether dropped or delivered early.
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    /**
+     * Stops the scheduler thread; items still waiting are discarded.
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        queue.clear();
+        size.set(0);
+    }
+
+    private static final class Entry<T> implements Delayed {
+        final T item;
+        final long at;
+        final long order;
+
+        Entry(T item, long at, long order) {
+            this.item = item;
+            this.at = at;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Entry<?> that = (Entry<?>) other;
+            // nanoTime values are only comparable by their difference
+            int byTime = Long.compare(at - that.at, 0);
+            return byTime != 0 ? byTime : Long.compare(order, that.order);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package org.sample.httpfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * EndToEndBenchmark runs Router, UDPServer/httpfs and a number of UDPClients in one process on
+ * loopback, without the JavaFX app, and sweeps drop rate x max delay x file size x clients.
+ * Every client keeps one keep-alive connection and GETs the file of the current size
+ * requests times. For each combination it reports goodput, request latency percentiles
+ * and the share of DATA/FIN packets that were retransmissions, as CSV or JSON.
+ *
+ * Options (lists are comma separated):
+ *   --drop 0,0.1,0.2  --delay 0,20  --size 1024,1048576  --clients 1,8  --requests 20
+ *   --parity 0  --workers 1  --loops 1  --port 3100  --warmup 20  --format csv|json  --out file  --verbose
+ *   --async (all clients share one AsyncUDPClient with a connection each, instead of a UDPClient per thread)
+ *
+ * For example: mvn compile org.codehaus.mojo:exec-maven-plugin:3.0.0:java
+ *   -Dexec.mainClass=org.sample.httpfs.EndToEndBenchmark -Dexec.args="--drop 0,0.2 --format json"
+ */
+public class EndToEndBenchmark {
+
+    private static final long ROUTER_STARTUP_MILLIS = 300;
+
+    private double[] dropRates = {0, 0.1, 0.2};
+    private long[] maxDelays = {0};
+    private int[] sizes = {1024, 1 << 20};
+    private int[] clientCounts = {1, 8};
+    private int requests = 20;
+    private int parityGroupSize = 0;
+    private int routerWorkers = 1;
+    private int serverLoops = 1;
+    private int routerPort = 3100;
+    private int warmupRequests = 20;
+    private boolean json = false;
+    private boolean verbose = false;
+    private boolean async = false;
+    private String out;
+
+    private Path directory;
+    private UDPServer server;
+    private final TransferStats clientStats = new TransferStats();
+
+    /**
+     * Outcome of one combination of the sweep.
+     */
+    static class Result {
+        double dropRate;
+        long maxDelay;
+        int size;
+        int clients;
+        int requests;
+        int errors;
+        double seconds;
+        double goodputMbps;
+        double p50;
+        double p99;
+        double p999;
+        long packetsSent;
+        long retransmissions;
+        double retransmissionRatio;
+    }
+
+    public static void main(String[] args) throws Exception {
+        EndToEndBenchmark benchmark = new EndToEndBenchmark();
+        benchmark.parse(args);
+        List<Result> results = benchmark.run();
+        String report = benchmark.json ? toJson(results) : toCsv(results);
+        if (benchmark.out == null) {
+            System.out.print(report);
+        } else {
+            Files.write(Paths.get(benchmark.out), report.getBytes(UTF_8));
+        }
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--verbose")) {
+                verbose = true;
+                continue;
+            }
+            if (option.equals("--async")) {
+                async = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--drop":
+                    dropRates = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+                    break;
+                case "--delay":
+                    maxDelays = Arrays.stream(value.split(",")).mapToLong(Long::parseLong).toArray();
+                    break;
+                case "--size":
+                    sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--clients":
+                    clientCounts = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(value);
+                    break;
+                case "--parity":
+                    parityGroupSize = Integer.parseInt(value);
+                    break;
+                case "--workers":
+                    routerWorkers = Integer.parseInt(value);
+                    break;
+                case "--loops":
+                    serverLoops = Integer.parseInt(value);
+                    break;
+                case "--port":
+                    routerPort = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupRequests = Integer.parseInt(value);
+                    break;
+                case "--format":
+                    json = value.equalsIgnoreCase("json");
+                    break;
+                case "--out":
+                    out = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+
+    private List<Result> run() throws Exception {
+        PrintStream console = System.out;
+        if (!verbose) {
+            // Client and server trace every retransmission on stdout; progress goes to stderr
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+        List<Result> results = new ArrayList<>();
+        directory = Files.createTempDirectory("httpfs-e2e");
+        try {
+            for (int size : sizes) {
+                Files.write(directory.resolve(fileName(size)), content(size));
+            }
+            server = new UDPServer(new httpfs(directory.toString(), false), routerPort + 1);
+            server.setEventLoops(serverLoops);
+            Thread serverThread = new Thread(server::serve, "e2e-server");
+            serverThread.start();
+
+            boolean warm = warmupRequests == 0;
+            for (double dropRate : dropRates) {
+                for (long maxDelay : maxDelays) {
+                    Thread routerThread = startRouter(dropRate, maxDelay);
+                    if (!warm) {
+                        runCombination(dropRate, maxDelay, sizes[0], 1, warmupRequests);
+                        warm = true;
+                    }
+                    for (int size : sizes) {
+                        for (int clients : clientCounts) {
+                            Result result = runCombination(dropRate, maxDelay, size, clients, requests);
+                            results.add(result);
+                            System.err.printf(Locale.ROOT, "drop=%.2f delay=%d size=%d clients=%d: %.1f Mbit/s, p50 %.1f ms, p99 %.1f ms, %d errors%n",
+                                    dropRate, maxDelay, size, clients, result.goodputMbps, result.p50, result.p99, result.errors);
+                        }
+                    }
+                    Router.stop();
+                    routerThread.join();
+                }
+            }
+            server.stop();
+            serverThread.join();
+        } finally {
+            System.setOut(console);
+            deleteDirectory();
+        }
+        return results;
+    }
+
+    private Thread startRouter(double dropRate, long maxDelay) throws InterruptedException {
+        String[] arguments = {Double.toString(dropRate), Long.toString(maxDelay), Integer.toString(routerPort),
+                "10000", Integer.toString(routerWorkers)};
+        Thread thread = new Thread(() -> Router.main(arguments, null), "e2e-router");
+        thread.start();
+        Thread.sleep(ROUTER_STARTUP_MILLIS);
+        return thread;
+    }
+
+    private Result runCombination(double dropRate, long maxDelay, int size, int clients, int requestsPerClient) throws Exception {
+        InetSocketAddress serverAddr = new InetSocketAddress("localhost", routerPort + 1);
+        InetSocketAddress routerAddr = new InetSocketAddress("localhost", routerPort);
+        byte[] request = ("GET /" + fileName(size) + " HTTP/1.0\r\nHost: localhost\r\n\r\n").getBytes(UTF_8);
+        server.getStats().reset();
+        clientStats.reset();
+
+        long start = System.nanoTime();
+        long[] latencies;
+        if (async) {
+            latencies = runAsyncClients(serverAddr, routerAddr, request, size, clients, requestsPerClient);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                futures.add(executor.submit(() -> runClient(serverAddr, routerAddr, request, size, requestsPerClient)));
+            }
+            latencies = new long[clients * requestsPerClient];
+            int count = 0;
+            for (Future<long[]> future : futures) {
+                for (long latency : future.get()) {
+                    latencies[count++] = latency;
+                }
+            }
+            executor.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int ok = 0;
+        for (long latency : latencies) {
+            if (latency >= 0) {
+                latencies[ok++] = latency;
+            }
+        }
+        long[] completed = Arrays.copyOf(latencies, ok);
+        Arrays.sort(completed);
+
+        Result result = new Result();
+        result.dropRate = dropRate;
+        result.maxDelay = maxDelay;
+        result.size = size;
+        result.clients = clients;
+        result.requests = latencies.length;
+        result.errors = latencies.length - ok;
+        result.seconds = seconds;
+        result.goodputMbps = (double) ok * size * 8 / seconds / 1e6;
+        result.p50 = percentile(completed, 0.5);
+        result.p99 = percentile(completed, 0.99);
+        result.p999 = percentile(completed, 0.999);
+        result.packetsSent = server.getStats().getPacketsSent() + clientStats.getPacketsSent();
+        result.retransmissions = server.getStats().getRetransmissions() + clientStats.getRetransmissions();
+        result.retransmissionRatio = result.packetsSent == 0 ? 0 : (double) result.retransmissions / result.packetsSent;
+        return result;
+    }
+
+    /**
+     * Sends the requests on one keep-alive connection and returns their latencies in nanoseconds,
+     * -1 for a request that failed or got a wrong response.
+     */
+    private long[] runClient(InetSocketAddress serverAddr, InetSocketAddress routerAddr, byte[] request, int size, int count) {
+        long[] latencies = new long[count];
+        UDPClient client = null;
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            try {
+                if (client == null) {
+                    client = UDPClient.open(serverAddr, routerAddr, new InetSocketAddress("localhost", 0), parityGroupSize);
+                    client.setStats(clientStats);
+                }
+                String response = client.request(request);
+                boolean ok = response.contains("200 OK") && response.length() >= size;
+                latencies[i] = ok ? System.nanoTime() - start : -1;
+            } catch (IOException e) {
+                latencies[i] = -1;
+                if (client != null) {
+                    client.close();
+                    client = null;
+                }
+            }
+        }
+        if (client != null) {
+            client.close();
+        }
+        return latencies;
+    }
+
+    /**
+     * Same as a runClient per client, with every client a chain of requests on one shared AsyncUDPClient.
+     */
+    private long[] runAsyncClients(InetSocketAddress serverAddr, InetSocketAddress routerAddr, byte[] request, int size,
+                                   int clients, int count) throws IOException {
+        long[] latencies = new long[clients * count];
+        try (AsyncUDPClient client = new AsyncUDPClient(serverAddr, routerAddr)) {
+            client.setMaxConnections(clients);
+            client.setParityGroupSize(parityGroupSize);
+            client.setStats(clientStats);
+            CompletableFuture<?>[] chains = new CompletableFuture<?>[clients];
+            for (int c = 0; c < clients; c++) {
+                chains[c] = sendChain(client, request, size, latencies, c * count, (c + 1) * count);
+            }
+            CompletableFuture.allOf(chains).join();
+        }
+        return latencies;
+    }
+
+    /**
+     * Sends the request for latencies[i] and, once it is answered, the one for latencies[i + 1], up to end.
+     */
+    private static CompletableFuture<Void> sendChain(AsyncUDPClient client, byte[] request, int size, long[] latencies,
+                                                     int i, int end) {
+        if (i == end) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        return client.send(request).handle((response, failure) -> {
+            boolean ok = failure == null && response.getStatus() == 200 && response.getBody().remaining() >= size;
+            latencies[i] = ok ? System.nanoTime() - start : -1;
+            return (Void) null;
+        }).thenCompose(done -> sendChain(client, request, size, latencies, i + 1, end));
+    }
+
+    /**
+     * Nearest-rank percentile of sorted nanosecond latencies, in milliseconds; NaN without samples.
+     */
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    static String toCsv(List<Result> results) {
+        StringBuilder csv = new StringBuilder("drop_rate,max_delay_ms,size_bytes,clients,requests,errors,seconds,"
+                + "goodput_mbps,p50_ms,p99_ms,p999_ms,packets_sent,retransmissions,retransmission_ratio\n");
+        for (Result r : results) {
+            csv.append(String.format(Locale.ROOT, "%.3f,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%d,%.4f%n",
+                    r.dropRate, r.maxDelay, r.size, r.clients, r.requests, r.errors, r.seconds,
+                    r.goodputMbps, r.p50, r.p99, r.p999, r.packetsSent, r.retransmissions, r.retransmissionRatio));
+        }
+        return csv.toString();
+    }
+
+    static String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            json.append(String.format(Locale.ROOT, "  {\"drop_rate\": %.3f, \"max_delay_ms\": %d, \"size_bytes\": %d, "
+                    + "\"clients\": %d, \"requests\": %d, \"errors\": %d, \"seconds\": %.3f, \"goodput_mbps\": %.3f, "
+                    + "\"p50_ms\": %s, \"p99_ms\": %s, \"p999_ms\": %s, \"packets_sent\": %d, \"retransmissions\": %d, "
+                    + "\"retransmission_ratio\": %.4f}",
+                    r.dropRate, r.maxDelay, r.size, r.clients, r.requests, r.errors, r.seconds, r.goodputMbps,
+                    jsonNumber(r.p50), jsonNumber(r.p99), jsonNumber(r.p999),
+                    r.packetsSent, r.retransmissions, r.retransmissionRatio));
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static String jsonNumber(double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String fileName(int size) {
+        return "file-" + size + ".txt";
+    }
+
+    /**
+     * Printable content, so the response survives the client's decoding and its length can be checked.
+     */
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileMessageSource is a response made of an in-memory header followed by the raw bytes of a file.
+ * The body is read straight from a FileChannel by position, so heap use does not depend on the file
+ * size and binary files pass unchanged. The file is not memory-mapped: a mapped file that is truncated
+ * while it is sent faults the JVM, whereas a positional read just comes up short, which the sender
+ * reports as an IOException.
+ * The file is opened before the header is set, so the header can state the size that is actually sent.
+ */
+public class FileMessageSource implements MessageSource {
+
+    private byte[] header = new byte[0];
+    private final FileChannel file;
+    private final long fileSize;
+
+    public FileMessageSource(byte[] header, Path path) throws IOException {
+        this(path);
+        this.header = header;
+    }
+
+    /**
+     * Opens the file without a header; setHeader must be called before the first read.
+     */
+    public FileMessageSource(Path path) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = file.size();
+    }
+
+    public void setHeader(byte[] header) {
+        this.header = header;
+    }
+
+    /**
+     * Length of the file body, i.e. the Content-Length of the response.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public long length() {
+        return header.length + fileSize;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        int copied = 0;
+        if (position < header.length) {
+            copied = (int) Math.min(dst.remaining(), header.length - position);
+            dst.put(header, (int) position, copied);
+            position += copied;
+        }
+        long offset = position - header.length;
+        int n = (int) Math.min(dst.remaining(), fileSize - offset);
+        if (n <= 0) {
+            return copied;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + n);
+        try {
+            n = Math.max(0, file.read(dst, offset));
+        } finally {
+            dst.limit(limit);
+        }
+        return copied + n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
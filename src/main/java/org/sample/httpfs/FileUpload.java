@@ -0,0 +1,80 @@
+package org.sample.httpfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileUpload writes the body of a POST to a temporary file next to its target as it arrives.
+ * commit() renames it over the target in one step, so readers never see a partial upload;
+ * close() without a commit deletes the temporary file.
+ */
+public class FileUpload implements Closeable {
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private long length;
+    private boolean committed = false;
+
+    public FileUpload(Path target) throws IOException {
+        this.target = target;
+        Path parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        this.temp = Files.createTempFile(parent, "." + target.getFileName(), ".part");
+        this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes the next length bytes of the body at the current end of the upload.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Writes the bytes between position and limit of src at the current end of the upload.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            this.length += channel.write(src, this.length);
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Moves the upload into place. Returns true if it replaced an existing file.
+     */
+    public boolean commit() throws IOException {
+        boolean existed = Files.exists(target);
+        channel.close();
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+        return existed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+}
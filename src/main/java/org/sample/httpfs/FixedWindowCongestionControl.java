@@ -0,0 +1,41 @@
+package org.sample.httpfs;
+
+/**
+ * FixedWindowCongestionControl always allows the same number of packets in flight and ignores losses,
+ * which is how the sender behaved before it had congestion control.
+ */
+public class FixedWindowCongestionControl implements CongestionControl {
+
+    private final int window;
+
+    public FixedWindowCongestionControl(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public int getSlowStartThreshold() {
+        return window;
+    }
+
+    @Override
+    public void onAck(int acked, long base, long now) {
+    }
+
+    @Override
+    public void onLoss(long highestSent, int inFlight, long now) {
+    }
+
+    @Override
+    public void onTimeout(long highestSent, int inFlight, long now) {
+    }
+
+    @Override
+    public String toString() {
+        return "cwnd=" + window + " (fixed)";
+    }
+}
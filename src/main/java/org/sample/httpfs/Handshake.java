@@ -0,0 +1,120 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Handshake is the payload of SYN and SYN-ACK packets. It starts with a VERSION byte; payloads
+ * without it come from peers that predate the handshake fields (the original client sends the
+ * text "synPacket") and are read as connection id 0, no flags, the default payload size and no parity.
+ * The client picks a connection id for every exchange and the server echoes it,
+ * so a new SYN from a reused client port is not mistaken for a retransmitted one.
+ * A flags byte follows: the client sets KEEP_ALIVE to ask for a persistent connection
+ * and the server echoes it if it agrees. Then comes the payload size: the client proposes
+ * the largest DATA payload it can take, the server answers with the size both will use.
+ * Either packet may be padded up to that size, so it only arrives if the path carries it.
+ * Last is the parity group size: the client proposes sending a PARITY packet for every that
+ * many DATA packets, the server answers with the size both will use; 0 turns parity off.
+ */
+public class Handshake {
+
+    public static final int LENGTH = 9;
+    /**
+     * First byte of every handshake; its high bit is set, so no text payload starts with it.
+     */
+    public static final byte VERSION = (byte) 0x81;
+    public static final int KEEP_ALIVE = 1;
+
+    private final int connectionId;
+    private final int flags;
+    private final int maxPayload;
+    private final int parityGroupSize;
+
+    public Handshake(int connectionId, int flags, int maxPayload, int parityGroupSize) {
+        this.connectionId = connectionId;
+        this.flags = flags;
+        this.maxPayload = maxPayload;
+        this.parityGroupSize = parityGroupSize;
+    }
+
+    public Handshake(int connectionId, int flags, int maxPayload) {
+        this(connectionId, flags, maxPayload, 0);
+    }
+
+    public Handshake(int connectionId, int flags) {
+        this(connectionId, flags, Packet.DEFAULT_PAYLOAD_LEN);
+    }
+
+    public Handshake(int connectionId) {
+        this(connectionId, 0);
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    public boolean isKeepAlive() {
+        return (flags & KEEP_ALIVE) != 0;
+    }
+
+    /**
+     * Largest DATA payload proposed (SYN) or agreed on (SYN-ACK).
+     */
+    public int getMaxPayload() {
+        return maxPayload;
+    }
+
+    /**
+     * DATA packets per PARITY packet proposed (SYN) or agreed on (SYN-ACK), 0 if parity is off.
+     */
+    public int getParityGroupSize() {
+        return parityGroupSize;
+    }
+
+    public byte[] toBytes() {
+        return toBytes(LENGTH);
+    }
+
+    /**
+     * Encodes the handshake, zero-padded to paddedLength bytes if that is longer.
+     */
+    public byte[] toBytes(int paddedLength) {
+        return ByteBuffer.allocate(Math.max(LENGTH, paddedLength)).order(ByteOrder.BIG_ENDIAN)
+                .put(VERSION)
+                .putInt(connectionId)
+                .put((byte) flags)
+                .putShort((short) maxPayload)
+                .put((byte) parityGroupSize)
+                .array();
+    }
+
+    /**
+     * Parses a SYN/SYN-ACK payload; payloads from older peers yield connection id 0, no flags,
+     * the default payload size and no parity.
+     */
+    public static Handshake fromBytes(byte[] payload) {
+        if (payload == null) {
+            return new Handshake(0);
+        }
+        return fromBuffer(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Same as fromBytes for the payload between position and limit; the fields are only trusted
+     * if the payload starts with VERSION and is long enough to hold them all.
+     */
+    public static Handshake fromBuffer(ByteBuffer payload) {
+        if (payload.remaining() < LENGTH || payload.get() != VERSION) {
+            return new Handshake(0);
+        }
+        payload.order(ByteOrder.BIG_ENDIAN);
+        int connectionId = payload.getInt();
+        int flags = Byte.toUnsignedInt(payload.get());
+        int maxPayload = Short.toUnsignedInt(payload.getShort());
+        if (maxPayload == 0) {
+            maxPayload = Packet.DEFAULT_PAYLOAD_LEN;
+        }
+        int parityGroupSize = Byte.toUnsignedInt(payload.get());
+        return new Handshake(connectionId, flags, maxPayload, parityGroupSize);
+    }
+}
@@ -24,6 +24,11 @@ import javafx.scene.control.Tooltip;
 import javafx.stage.Stage;
 
 public class JavaFXApp extends Application {
+    private static final int LOG_CAPACITY = 8192;
+    private static final int MAX_LOG_RECORDS_PER_SECOND = 2000;
+    private static final long LOG_REFRESH_INTERVAL = 100;
+    // Scrollback of the log area; older lines are cut once it grows past this
+    private static final int MAX_LOG_CHARS = 200000;
     private   ComboBox<Double> dropRateField;
     private ComboBox<Number> maxDelayField;
     private ComboBox<String> methodBox;
@@ -34,10 +39,13 @@ public class JavaFXApp extends Application {
     public static TextField routerPortField;
     private TextField directoryField;
     private static TextArea logArea;
+    private static LogPipeline log;
     @Override
     public void start(Stage primaryStage) {
     	logArea = new TextArea();
     	logArea.setEditable(false);
+        log = new LogPipeline("ui-log", LOG_CAPACITY, MAX_LOG_RECORDS_PER_SECOND, LOG_REFRESH_INTERVAL,
+                JavaFXApp::appendLog);
         Label dropRateLabel = new Label("Drop Rate:");
         Label maxDelayLabel = new Label("Max Delay (ms):");
         Label urlLabel = new Label("URL:");
@@ -142,20 +150,43 @@ public class JavaFXApp extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
     }
+    @Override
+    public void stop() {
+        log.close();
+    }
+
+    /**
+     * Pipeline feeding the log area; the router puts its per-packet records here.
+     */
+    public static LogPipeline getLog() {
+        return log;
+    }
+
+    /**
+     * Queues a line for the log area, which is refreshed every LOG_REFRESH_INTERVAL ms.
+     */
     public static void updateLog(String message) {
-        Platform.runLater(() -> {
-            logArea.appendText(message + "\n");
-            logArea.setScrollTop(Double.MAX_VALUE);
-        });
+        log.text(message);
     }
 
 	public static void showResponse(String response) {
-		Platform.runLater(() -> {
-			logArea.appendText(response);
-			logArea.setScrollTop(Double.MAX_VALUE);
-			
-		});
+		appendLog(response);
 	}
+
+    /**
+     * Appends text on the FX thread and cuts the oldest lines beyond MAX_LOG_CHARS.
+     */
+    private static void appendLog(String text) {
+        Platform.runLater(() -> {
+            logArea.appendText(text);
+            int excess = logArea.getLength() - MAX_LOG_CHARS;
+            if (excess > 0) {
+                int lineEnd = logArea.getText(excess, Math.min(logArea.getLength(), excess + 1000)).indexOf('\n');
+                logArea.deleteText(0, lineEnd < 0 ? excess : excess + lineEnd + 1);
+            }
+            logArea.setScrollTop(Double.MAX_VALUE);
+        });
+    }
     private void Router() {
         String[] arguments = {dropRateField.getValue().toString(), maxDelayField.getValue().toString(), routerPortField.getText()};
         Router.main(arguments, this);
@@ -171,7 +202,8 @@ public class JavaFXApp extends Application {
     }
 
     private void Client() {
-        String[] arguments = {urlField.getText(), methodBox.getValue(), dataField.getText(), clientPortField.getText()};
+        String[] arguments = {urlField.getText(), methodBox.getValue(), dataField.getText(), clientPortField.getText(),
+                serverPortField.getText(), routerPortField.getText()};
         httpc.main(arguments, this);
     }
 
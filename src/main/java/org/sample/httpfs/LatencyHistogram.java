@@ -0,0 +1,136 @@
+package org.sample.httpfs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram records durations into fixed log-linear buckets of microseconds:
+ * exact below SUB_BUCKETS, then SUB_BUCKETS buckets per power of two, so a percentile is off
+ * by at most 1/SUB_BUCKETS of its value. Recording is one array increment and two adders,
+ * without locks or allocation, and may happen on any number of threads while others read.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * Records a duration measured with the millisecond clock, e.g. the RTT samples of a sender.
+     */
+    public void recordMillis(long millis) {
+        record(millis * 1000000);
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest value in microseconds that falls into the bucket.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Value in milliseconds that a share p of the recorded durations do not exceed, 0 if none were recorded.
+     */
+    public double getPercentileMillis(double p) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get()) / 1000.0;
+            }
+        }
+        return max.get() / 1000.0;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / 1000.0 / n;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return max.get() / 1000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getP90Millis() {
+        return getPercentileMillis(0.9);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getP999Millis() {
+        return getPercentileMillis(0.999);
+    }
+
+    /**
+     * Starts over; durations recorded concurrently may be partly kept.
+     */
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d, p50=%.3f ms, p99=%.3f ms, max=%.3f ms",
+                getCount(), getP50Millis(), getP99Millis(), getMaxMillis());
+    }
+}
@@ -0,0 +1,23 @@
+package org.sample.httpfs;
+
+/**
+ * JMX view of a LatencyHistogram.
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    void reset();
+}
@@ -0,0 +1,216 @@
+package org.sample.httpfs;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * LogPipeline moves log records from any number of threads to one sink, e.g. the log area
+ * of the JavaFX app, without ever blocking the producers.
+ * Producers copy the fields of a record into a preallocated slot of a bounded ring buffer;
+ * nothing is formatted or allocated on their side. A record that finds the ring full, or that
+ * exceeds maxRecordsPerSecond, is counted and dropped. A consumer thread wakes every
+ * flushInterval, formats everything that arrived into one batch and hands it to the sink,
+ * followed by a line telling how many records were dropped, so the sink is called at a
+ * fixed cadence however fast records arrive.
+ */
+public class LogPipeline implements AutoCloseable {
+
+    // The rate limit is applied per slice, so a burst cannot use up a whole second at once
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int SLICES_PER_SECOND = 10;
+
+    /**
+     * One slot of the ring: either a text message or the fields of a router packet event.
+     */
+    static final class Record {
+        String text;
+        String event;
+        int sequenceNumber;
+        InetSocketAddress from;
+        InetSocketAddress to;
+        int size;
+        int queue;
+        long delay;
+
+        void format(StringBuilder out) {
+            if (text != null) {
+                out.append(text);
+            } else {
+                out.append("[queue=").append(queue).append("] packet #").append(sequenceNumber)
+                        .append(", ").append(from).append(" -> ").append(to)
+                        .append(", sz=").append(size).append(" is ").append(event);
+                if (delay >= 0) {
+                    out.append(" for ").append(delay).append(" ms");
+                }
+            }
+            out.append('\n');
+            // Do not keep addresses or messages alive until the slot is reused
+            text = null;
+            from = null;
+            to = null;
+        }
+    }
+
+    private final Record[] records;
+    // Vyukov's bounded queue: a slot is free for position p when its sequence is p, readable when it is p + 1
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final int maxPerSlice;
+    private volatile long currentSlice;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final long flushIntervalNanos;
+    private final Consumer<String> sink;
+    private final StringBuilder batch = new StringBuilder();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * capacity is rounded up to a power of two. The consumer thread is named name.
+     */
+    public LogPipeline(String name, int capacity, int maxRecordsPerSecond, long flushIntervalMillis, Consumer<String> sink) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.records = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.maxPerSlice = Math.max(1, maxRecordsPerSecond / SLICES_PER_SECOND);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.sink = sink;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a message that is already formatted.
+     */
+    public void text(String message) {
+        long position = claim();
+        if (position >= 0) {
+            records[(int) position & mask].text = message;
+            publish(position);
+        }
+    }
+
+    /**
+     * Queues what the router did with a packet; delay is -1 unless the packet was delayed.
+     */
+    public void packet(String event, int sequenceNumber, InetSocketAddress from, InetSocketAddress to,
+                       int size, int queue, long delay) {
+        long position = claim();
+        if (position >= 0) {
+            Record record = records[(int) position & mask];
+            record.event = event;
+            record.sequenceNumber = sequenceNumber;
+            record.from = from;
+            record.to = to;
+            record.size = size;
+            record.queue = queue;
+            record.delay = delay;
+            publish(position);
+        }
+    }
+
+    /**
+     * Returns the ring position the caller may fill, or -1 if the record is dropped.
+     */
+    private long claim() {
+        if (closed || !admit()) {
+            return -1;
+        }
+        long position = tail.get();
+        while (true) {
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                overflowed.increment();
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private void publish(long position) {
+        sequences.lazySet((int) position & mask, position + 1);
+    }
+
+    private boolean admit() {
+        long slice = System.nanoTime() / SLICE_NANOS;
+        if (slice != currentSlice) {
+            // Racing producers may both reset; at worst a few extra records get through
+            currentSlice = slice;
+            admitted.set(0);
+        }
+        if (admitted.incrementAndGet() > maxPerSlice) {
+            suppressed.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void run() {
+        while (!closed) {
+            LockSupport.parkNanos(this, flushIntervalNanos);
+            flush();
+        }
+    }
+
+    /**
+     * Formats every record published so far and hands them to the sink as one batch.
+     * Called by the consumer thread on its cadence; calls from elsewhere are serialized with it.
+     */
+    public synchronized void flush() {
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            records[slot].format(batch);
+            sequences.lazySet(slot, head + records.length);
+            head++;
+        }
+        long dropped = suppressed.sumThenReset();
+        long full = overflowed.sumThenReset();
+        if (dropped > 0 || full > 0) {
+            batch.append("[log] ").append(dropped).append(" records over the rate limit and ")
+                    .append(full).append(" records over the queue capacity were dropped\n");
+        }
+        if (batch.length() > 0) {
+            sink.accept(batch.toString());
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * Stops the consumer thread after a last flush; later records are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
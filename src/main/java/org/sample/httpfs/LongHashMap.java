@@ -0,0 +1,151 @@
+package org.sample.httpfs;
+
+/**
+ * LongHashMap is an open-addressing hash map with primitive long keys.
+ * Lookups neither box the key nor allocate, which keeps per-packet connection lookups garbage free.
+ */
+public class LongHashMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public LongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (V) values[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V previous = (V) values[index];
+        removeAt(index);
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of slots; together with keyAt/valueAt this allows iteration without an Iterator.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Returns the value in the slot, or null if the slot is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * Removes the entry in the slot. Returns true if another entry was shifted into it,
+     * in which case the caller iterating by slot has to look at the same slot again.
+     */
+    public boolean removeAt(int slot) {
+        values[slot] = null;
+        size--;
+        // Backward-shift deletion keeps probe sequences intact without tombstones
+        boolean shifted = false;
+        int hole = slot;
+        int index = (slot + 1) & mask;
+        while (values[index] != null) {
+            int home = hash(keys[index]) & mask;
+            if (((index - home) & mask) >= ((index - hole) & mask)) {
+                keys[hole] = keys[index];
+                values[hole] = values[index];
+                values[index] = null;
+                if (hole == slot) {
+                    shifted = true;
+                }
+                hole = index;
+            }
+            index = (index + 1) & mask;
+        }
+        return shifted;
+    }
+
+    private int indexOf(long key) {
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int index = hash(oldKeys[i]) & mask;
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,10 @@
+package org.sample.httpfs;
+
+/**
+ * MessageSink receives the payloads of a message in order as ReassemblyBuffer delivers them.
+ * The payload array is reused for later packets, so a sink must copy or write it out before returning.
+ */
+public interface MessageSink {
+
+    void write(byte[] payload, int length);
+}
@@ -0,0 +1,73 @@
+package org.sample.httpfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MessageSource is the content of a message that SelectiveRepeatSender slices into DATA payloads.
+ * Payloads are read by absolute position as the window advances, so a message never has to be
+ * held in memory as a whole and retransmissions simply read the same range again.
+ */
+public interface MessageSource extends Closeable {
+
+    /**
+     * Total length of the message in bytes.
+     */
+    long length();
+
+    /**
+     * Copies bytes starting at position into dst, up to dst.remaining().
+     * Returns the number of bytes copied, which may be less than requested.
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Wraps a message that is in memory as a header followed by a body, without joining them.
+     */
+    static MessageSource of(byte[] header, byte[] body) {
+        return new MessageSource() {
+            @Override
+            public long length() {
+                return header.length + body.length;
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) {
+                int copied = 0;
+                if (position < header.length) {
+                    copied = (int) Math.min(dst.remaining(), header.length - position);
+                    dst.put(header, (int) position, copied);
+                    position += copied;
+                }
+                int offset = (int) (position - header.length);
+                int n = Math.max(0, Math.min(dst.remaining(), body.length - offset));
+                dst.put(body, offset, n);
+                return copied + n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a message that is already in memory.
+     */
+    static MessageSource of(byte[] data) {
+        return new MessageSource() {
+            @Override
+            public long length() {
+                return data.length;
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) {
+                int n = (int) Math.min(dst.remaining(), data.length - position);
+                dst.put(data, (int) position, n);
+                return n;
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package org.sample.httpfs;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics registers the counters of clients, servers and the router with the platform MBeanServer,
+ * under DOMAIN and key properties naming the component, e.g. "type=UDPServer,port=8007".
+ * The counters work the same when JMX is unavailable; failures to register are only reported.
+ */
+public class Metrics {
+
+    public static final String DOMAIN = "org.sample.httpfs";
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers the stats as name=transfer and each of their histograms under its own name.
+     */
+    public static void registerStats(String properties, TransferStats stats) {
+        register(properties + ",name=transfer", stats);
+        register(properties + ",name=rtt", stats.getRtt());
+        register(properties + ",name=handshake", stats.getHandshakeTime());
+        register(properties + ",name=requestLatency", stats.getRequestLatency());
+    }
+
+    /**
+     * Registers a standard MBean, replacing whatever was registered under the same name before.
+     */
+    public static void register(String properties, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (JMException | RuntimeException e) {
+            System.out.println("Failed to register metrics " + properties + ": " + e);
+        }
+    }
+
+    /**
+     * Unregisters every MBean whose name has the given key properties.
+     */
+    public static void unregister(String properties) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":" + properties + ",*"), null)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | RuntimeException e) {
+            System.out.println("Failed to unregister metrics " + properties + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.sample.httpfs;
+
+/**
+ * NewRenoCongestionControl is the AIMD window of TCP NewReno (RFC 5681, RFC 6582), counted in packets.
+ * The window grows by one packet per ACKed packet in slow start and by one packet per
+ * window in congestion avoidance. A loss halves it once per window of data: the sender
+ * stays in fast recovery until everything sent before the loss is ACKed. A timeout
+ * restarts slow start from one packet.
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+
+    public static final int INITIAL_WINDOW = 4;
+    public static final int MIN_SLOW_START_THRESHOLD = 2;
+
+    private final int maxWindow;
+    private double window;
+    private int slowStartThreshold;
+    private long base = Long.MIN_VALUE;
+    // Losses of packets below recover belong to a window that was already cut
+    private long recover = Long.MIN_VALUE;
+    private boolean inRecovery = false;
+    private long lossEvents;
+    private long timeouts;
+
+    /**
+     * maxWindow bounds the window, usually the window of the sender and its peer's receiver.
+     */
+    public NewRenoCongestionControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.slowStartThreshold = maxWindow;
+        this.window = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    @Override
+    public int getWindow() {
+        return Math.max(1, (int) window);
+    }
+
+    @Override
+    public int getSlowStartThreshold() {
+        return slowStartThreshold;
+    }
+
+    @Override
+    public void onAck(int acked, long base, long now) {
+        this.base = base;
+        if (inRecovery) {
+            // A partial ACK keeps the window; the holes left are retransmitted as they are found
+            if (base >= recover) {
+                inRecovery = false;
+                window = slowStartThreshold;
+            }
+            return;
+        }
+        if (window < slowStartThreshold) {
+            window = Math.min(window + acked, slowStartThreshold);
+        } else {
+            window += (double) acked / window;
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    @Override
+    public void onLoss(long highestSent, int inFlight, long now) {
+        if (inRecovery || base < recover) {
+            return;
+        }
+        lossEvents++;
+        slowStartThreshold = Math.max(inFlight / 2, MIN_SLOW_START_THRESHOLD);
+        window = slowStartThreshold;
+        recover = highestSent;
+        inRecovery = true;
+    }
+
+    @Override
+    public void onTimeout(long highestSent, int inFlight, long now) {
+        timeouts++;
+        slowStartThreshold = Math.max(inFlight / 2, MIN_SLOW_START_THRESHOLD);
+        window = 1;
+        recover = highestSent;
+        inRecovery = false;
+    }
+
+    public boolean isInRecovery() {
+        return inRecovery;
+    }
+
+    public long getLossEvents() {
+        return lossEvents;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cwnd=%d ssthresh=%d%s losses=%d timeouts=%d",
+                getWindow(), slowStartThreshold, inRecovery ? " recovering" : "", lossEvents, timeouts);
+    }
+}
@@ -2,7 +2,6 @@ package org.sample.httpfs;
 
 
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -26,16 +25,32 @@ import java.net.SocketAddress;
 public class Packet {
 
     public static final int MIN_LEN = 11;
-    public static final int MAX_LEN = 11 + 1024;
+    /**
+     * Payload size of a connection that negotiated nothing, e.g. with an older peer.
+     */
+    public static final int DEFAULT_PAYLOAD_LEN = 1024;
+    public static final int MAX_LEN = MIN_LEN + DEFAULT_PAYLOAD_LEN;
+    /**
+     * Payload size proposed during the handshake unless configured otherwise.
+     * A full window of these (64 x 8203 bytes, about 525 KB) is more than Linux's default socket
+     * receive buffer of about 208 KB, so every channel sets SO_RCVBUF itself: 1 MB on the clients,
+     * 4 MB on the server and the router. The kernel caps that at net.core.rmem_max.
+     */
+    public static final int PREFERRED_PAYLOAD_LEN = 8192;
+    // The largest UDP datagram over IPv4
+    public static final int MAX_DATAGRAM_LEN = 65507;
+    public static final int MAX_PAYLOAD_LEN = MAX_DATAGRAM_LEN - MIN_LEN;
     
     private final PacketType type;
     public static enum PacketType {
-        SYN, ACK, SYNACK, FIN, DATA
+        SYN, ACK, SYNACK, FIN, DATA, PARITY
     }
     private final long sequenceNumber;
     private final InetAddress peerAddress;
     private final int peerPort;
     private final byte[] payload;
+    // Packed once so encoding does not clone the address bytes on every send
+    private final int rawPeerAddress;
 
 
     public Packet(PacketType type, long sequenceNumber, InetAddress peerAddress, int peerPort, byte[] payload) {
@@ -44,6 +59,7 @@ public class Packet {
         this.peerAddress = peerAddress;
         this.peerPort = peerPort;
         this.payload = payload;
+        this.rawPeerAddress = peerAddress == null ? 0 : PacketView.toInt(peerAddress);
     }
 
     public PacketType getType() {
@@ -83,11 +99,8 @@ public class Packet {
      * Writes a raw presentation of the packet to byte buffer.
      * The order of the buffer should be set as BigEndian.
      */
-    private void write(ByteBuffer buf) {
-        buf.put((byte) PacketType.valueOf(type.name()).ordinal());
-        buf.putInt((int) sequenceNumber);
-        buf.put(peerAddress.getAddress());
-        buf.putShort((short) peerPort);
+    public void write(ByteBuffer buf) {
+        PacketView.putHeader(buf, type, sequenceNumber, rawPeerAddress, peerPort);
         buf.put(payload);
     }
 
@@ -97,7 +110,7 @@ public class Packet {
      */
     public ByteBuffer toBuffer() {
         // Calculate the size needed based on actual payload length
-        int totalSize = 1 + 4 + peerAddress.getAddress().length + 2 + payload.length;  // Adjusted buffer size
+        int totalSize = MIN_LEN + payload.length;
         ByteBuffer buf = ByteBuffer.allocate(totalSize).order(ByteOrder.BIG_ENDIAN);
         write(buf);  // This will write all packet attributes including the payload
         buf.flip();
@@ -119,43 +132,61 @@ public class Packet {
      * fromBuffer creates a packet from the given ByteBuffer in BigEndian.
      */
     public static Packet fromBuffer(ByteBuffer buf) throws IOException {
-        if (buf.limit() < MIN_LEN || buf.limit() > MAX_LEN) {
+        PacketView view = new PacketView().wrap(buf);
+        if (!view.isValid()) {
            return null;
-       }
-        Builder builder = new Builder();
-
-        builder.setType(PacketType.values()[Byte.toUnsignedInt(buf.get())]);
-        builder.setSequenceNumber(Integer.toUnsignedLong(buf.getInt()));
-
-        byte[] host = new byte[]{buf.get(), buf.get(), buf.get(), buf.get()};
-        builder.setPeerAddress(Inet4Address.getByAddress(host));
-        builder.setPortNumber(Short.toUnsignedInt(buf.getShort()));
-
-        byte[] payload = new byte[buf.remaining()];
-        buf.get(payload);
-        builder.setPayload(payload);
-
-        return builder.create();
+        }
+        return view.toPacket();
     }
     public void sendPacket(DatagramChannel channel, SocketAddress router) throws IOException{
-            channel.send(this.toBuffer(), router);
-    }   
+        BufferPool pool = BufferPool.forLength(MIN_LEN + payload.length);
+        ByteBuffer buf = pool.acquire();
+        try {
+            sendPacket(channel, router, buf);
+        } finally {
+            pool.release(buf);
+        }
+    }
+
+    /**
+     * Sends the packet encoded into a reusable buffer instead of a fresh one.
+     */
+    public void sendPacket(DatagramChannel channel, SocketAddress router, ByteBuffer sendBuffer) throws IOException{
+        sendBuffer.clear();
+        write(sendBuffer);
+        sendBuffer.flip();
+        channel.send(sendBuffer, router);
+    }
     public static Packet receivePacket(DatagramChannel channel) throws IOException{
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-        channel.receive(buf);
-        buf.flip();
-        return fromBuffer(buf);
+        BufferPool pool = BufferPool.forLength(MAX_DATAGRAM_LEN);
+        ByteBuffer buf = pool.acquire();
+        try {
+            channel.receive(buf);
+            buf.flip();
+            return fromBuffer(buf);
+        } finally {
+            pool.release(buf);
+        }
     }
     public static Packet waitForResponse(DatagramChannel channel) throws IOException{
+        return waitForResponse(channel, 2000);
+    }
+
+    /**
+     * Waits at most timeoutMillis for the next datagram on the channel.
+     * Returns null if nothing arrived in time.
+     */
+    public static Packet waitForResponse(DatagramChannel channel, long timeoutMillis) throws IOException{
         channel.configureBlocking(false);
-        Selector selector = Selector.open();
-        channel.register(selector, OP_READ);
-        selector.select(2000);
-        Set<SelectionKey> keys = selector.selectedKeys();
-        if(keys.isEmpty()) {
-            return null;
-        }else{
-             return receivePacket(channel);
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, OP_READ);
+            selector.select(Math.max(1, timeoutMillis));
+            Set<SelectionKey> keys = selector.selectedKeys();
+            if(keys.isEmpty()) {
+                return null;
+            }else{
+                 return receivePacket(channel);
+            }
         }
     }
     public Packet resendPacket(DatagramChannel channel, SocketAddress router) throws IOException{
@@ -172,21 +203,26 @@ public class Packet {
      * fromBytes creates a packet from the given array of bytes.
      */
     public static Packet fromBytes(byte[] bytes) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-        buf.put(bytes);
-        buf.flip();
-        return fromBuffer(buf);
+        return fromBuffer(ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN));
     }
 
     public static HashMap<Long, Packet> splitMessage(byte[] data, SocketAddress routerAddr, InetSocketAddress serverAddr, long startingSequenceNumber){
+        return splitMessage(data, routerAddr, serverAddr, startingSequenceNumber, DEFAULT_PAYLOAD_LEN);
+    }
+
+    /**
+     * Splits a message into DATA packets of at most maxPayload bytes, the size negotiated
+     * for the connection, followed by a FIN.
+     */
+    public static HashMap<Long, Packet> splitMessage(byte[] data, SocketAddress routerAddr, InetSocketAddress serverAddr, long startingSequenceNumber, int maxPayload){
 		HashMap<Long, Packet> packetsToBeSent = new HashMap<Long,Packet>();
 		byte [] message = data;
 		int sent = 0;
         long nextSequenceNumber = startingSequenceNumber; // After syn and synack handshake
 		while(sent < message.length) {
 			int bytesneeded = 0;
-			if((message.length - sent) > Packet.MAX_LEN) {
-				bytesneeded = Packet.MAX_LEN;
+			if((message.length - sent) > maxPayload) {
+				bytesneeded = maxPayload;
 			}
 			else {
 				bytesneeded = message.length - sent;
@@ -204,7 +240,7 @@ public class Packet {
 					.setPayload(requestData)
 					.create();
 			packetsToBeSent.put(nextSequenceNumber, p);
-			nextSequenceNumber = nextSequenceNumber + 2;
+			nextSequenceNumber = nextSequenceNumber + 1;
 		}
 		Packet finPacket = new Packet.Builder()
 						.setType(Packet.PacketType.FIN)
@@ -0,0 +1,161 @@
+package org.sample.httpfs;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketView is a reusable flyweight over a datagram held in a ByteBuffer.
+ * It reads the header fields at fixed offsets and copies the payload straight out of the buffer,
+ * so decoding a packet does not allocate. putHeader does the same for encoding.
+ * Packet and its Builder remain the convenient, allocating API on top of this layout.
+ */
+public class PacketView {
+
+    public static final int TYPE_OFFSET = 0;
+    public static final int SEQUENCE_OFFSET = 1;
+    public static final int PEER_ADDRESS_OFFSET = 5;
+    public static final int PEER_PORT_OFFSET = 9;
+    public static final int PAYLOAD_OFFSET = 11;
+
+    // PacketType.values() clones its array on every call
+    private static final Packet.PacketType[] TYPES = Packet.PacketType.values();
+
+    private ByteBuffer buf;
+    private int base;
+    private int length;
+
+    /**
+     * Points the view at the datagram between the buffer's position and limit.
+     * The buffer's position and limit are not modified by the getters.
+     */
+    public PacketView wrap(ByteBuffer buf) {
+        this.buf = buf;
+        this.base = buf.position();
+        this.length = buf.remaining();
+        return this;
+    }
+
+    /**
+     * Returns false for datagrams that are too short, too long or of an unknown type.
+     * Payloads larger than the size negotiated for a connection are rejected by its receiver.
+     */
+    public boolean isValid() {
+        return length >= Packet.MIN_LEN && length <= Packet.MAX_DATAGRAM_LEN
+                && Byte.toUnsignedInt(buf.get(base + TYPE_OFFSET)) < TYPES.length;
+    }
+
+    public Packet.PacketType getType() {
+        return TYPES[Byte.toUnsignedInt(buf.get(base + TYPE_OFFSET))];
+    }
+
+    public long getSequenceNumber() {
+        return Integer.toUnsignedLong(buf.getInt(base + SEQUENCE_OFFSET));
+    }
+
+    /**
+     * Returns the peer IPv4 address in network order packed into an int.
+     */
+    public int getPeerAddress() {
+        return buf.getInt(base + PEER_ADDRESS_OFFSET);
+    }
+
+    public int getPeerPort() {
+        return Short.toUnsignedInt(buf.getShort(base + PEER_PORT_OFFSET));
+    }
+
+    /**
+     * Returns the peer address and port packed into one long, e.g. as a map key.
+     */
+    public long getPeerKey() {
+        return peerKey(getPeerAddress(), getPeerPort());
+    }
+
+    public int getPayloadLength() {
+        return length - PAYLOAD_OFFSET;
+    }
+
+    public byte getPayloadByte(int index) {
+        return buf.get(base + PAYLOAD_OFFSET + index);
+    }
+
+    public short getPayloadShort(int index) {
+        return buf.getShort(base + PAYLOAD_OFFSET + index);
+    }
+
+    public int getPayloadInt(int index) {
+        return buf.getInt(base + PAYLOAD_OFFSET + index);
+    }
+
+    public long getPayloadLong(int index) {
+        return buf.getLong(base + PAYLOAD_OFFSET + index);
+    }
+
+    /**
+     * Copies the payload into dst at offset and returns its length.
+     */
+    public int copyPayload(byte[] dst, int offset) {
+        int payloadLength = getPayloadLength();
+        for (int i = 0; i < payloadLength; i++) {
+            dst[offset + i] = buf.get(base + PAYLOAD_OFFSET + i);
+        }
+        return payloadLength;
+    }
+
+    /**
+     * XORs length bytes of the payload, from index on, into dst at dstOffset. Unlike payload()
+     * this reads the viewed buffer in place, so it costs no allocation per packet.
+     */
+    public void xorPayload(ByteBuffer dst, int dstOffset, int index, int length) {
+        ParityEncoder.xor(dst, dstOffset, buf, base + PAYLOAD_OFFSET + index, length);
+    }
+
+    /**
+     * Returns the payload as a slice sharing the underlying buffer.
+     */
+    public ByteBuffer payload() {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(base + length).position(base + PAYLOAD_OFFSET);
+        return slice.slice();
+    }
+
+    /**
+     * Copies the viewed datagram into a standalone Packet.
+     */
+    public Packet toPacket() throws UnknownHostException {
+        byte[] payload = new byte[getPayloadLength()];
+        copyPayload(payload, 0);
+        return new Packet.Builder()
+                .setType(getType())
+                .setSequenceNumber(getSequenceNumber())
+                .setPeerAddress(toInetAddress(getPeerAddress()))
+                .setPortNumber(getPeerPort())
+                .setPayload(payload)
+                .create();
+    }
+
+    /**
+     * Writes a packet header at the buffer's position; the payload follows with plain puts.
+     */
+    public static void putHeader(ByteBuffer buf, Packet.PacketType type, long sequenceNumber, int peerAddress, int peerPort) {
+        buf.put((byte) type.ordinal());
+        buf.putInt((int) sequenceNumber);
+        buf.putInt(peerAddress);
+        buf.putShort((short) peerPort);
+    }
+
+    public static long peerKey(int peerAddress, int peerPort) {
+        return (Integer.toUnsignedLong(peerAddress) << 16) | peerPort;
+    }
+
+    public static int toInt(InetAddress address) {
+        byte[] raw = address.getAddress();
+        return ((raw[0] & 0xff) << 24) | ((raw[1] & 0xff) << 16) | ((raw[2] & 0xff) << 8) | (raw[3] & 0xff);
+    }
+
+    public static InetAddress toInetAddress(int address) throws UnknownHostException {
+        return Inet4Address.getByAddress(new byte[]{
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+    }
+}
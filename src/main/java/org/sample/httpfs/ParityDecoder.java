@@ -0,0 +1,166 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ParityDecoder rebuilds lost DATA packets from the PARITY packets of a ParityEncoder.
+ * It keeps a running XOR of the payloads received in every group of the receive window.
+ * Once the group's PARITY packet is in too and exactly one packet of the group is missing,
+ * that XOR is the missing payload, so it is recovered without a round trip to the sender.
+ * Groups live in a ring indexed like the ReassemblyBuffer's slots; a group is dropped
+ * when a group one ring length later needs its slot, by which time it has been delivered.
+ */
+public class ParityDecoder {
+
+    private static final int COUNT_OFFSET = 0;
+    private static final int LENGTH_OFFSET = 1;
+
+    private final long firstSequenceNumber;
+    private final int groupSize;
+    private final int maxPayload;
+    private final long[] groups;
+    private final ByteBuffer[] xors;
+    private final int[] lengthXors;
+    private final long[] received;
+    // Number of packets in the group as told by its PARITY packet, 0 until that arrives
+    private final int[] counts;
+    private long recoveredSequenceNumber;
+    private int recoveredSlot;
+    private int recoveredLength;
+    private long recovered;
+
+    /**
+     * maxPayload is the DATA payload size, windowSize the receive window the groups have to cover.
+     */
+    public ParityDecoder(long firstSequenceNumber, int groupSize, int maxPayload, int windowSize) {
+        this.firstSequenceNumber = firstSequenceNumber;
+        this.groupSize = groupSize;
+        this.maxPayload = maxPayload;
+        int ring = (windowSize + groupSize - 1) / groupSize + 2;
+        this.groups = new long[ring];
+        this.xors = new ByteBuffer[ring];
+        this.lengthXors = new int[ring];
+        this.received = new long[ring];
+        this.counts = new int[ring];
+        Arrays.fill(groups, -1);
+    }
+
+    /**
+     * Folds in a DATA packet the receiver has just stored.
+     * Returns true if that leaves one packet of the group to recover, see getRecovered().
+     */
+    public boolean onData(PacketView packet) {
+        long sequenceNumber = packet.getSequenceNumber();
+        if (sequenceNumber < firstSequenceNumber || packet.getPayloadLength() > maxPayload) {
+            return false;
+        }
+        long group = (sequenceNumber - firstSequenceNumber) / groupSize;
+        int slot = slot(group);
+        if (slot < 0) {
+            return false;
+        }
+        long bit = 1L << ((sequenceNumber - firstSequenceNumber) % groupSize);
+        if ((received[slot] & bit) != 0) {
+            return false;
+        }
+        received[slot] |= bit;
+        packet.xorPayload(xors[slot], 0, 0, packet.getPayloadLength());
+        lengthXors[slot] ^= packet.getPayloadLength();
+        return tryRecover(group, slot);
+    }
+
+    /**
+     * Takes in a PARITY packet. Returns true if it lets one packet of its group be recovered.
+     */
+    public boolean onParity(PacketView packet) {
+        long sequenceNumber = packet.getSequenceNumber();
+        int xorLength = packet.getPayloadLength() - ParityEncoder.HEADER_LENGTH;
+        if (sequenceNumber < firstSequenceNumber || (sequenceNumber - firstSequenceNumber) % groupSize != 0
+                || xorLength < 0 || xorLength > maxPayload) {
+            return false;
+        }
+        int count = Byte.toUnsignedInt(packet.getPayloadByte(COUNT_OFFSET));
+        long group = (sequenceNumber - firstSequenceNumber) / groupSize;
+        int slot = slot(group);
+        if (slot < 0 || counts[slot] != 0 || count == 0 || count > groupSize) {
+            return false;
+        }
+        counts[slot] = count;
+        packet.xorPayload(xors[slot], 0, ParityEncoder.HEADER_LENGTH, xorLength);
+        lengthXors[slot] ^= Short.toUnsignedInt(packet.getPayloadShort(LENGTH_OFFSET));
+        return tryRecover(group, slot);
+    }
+
+    private boolean tryRecover(long group, int slot) {
+        int count = counts[slot];
+        if (count == 0) {
+            return false;
+        }
+        long all = count == Long.SIZE ? -1L : (1L << count) - 1;
+        long missing = all & ~received[slot];
+        if (Long.bitCount(missing) != 1) {
+            return false;
+        }
+        int index = Long.numberOfTrailingZeros(missing);
+        int length = lengthXors[slot];
+        if (length > maxPayload) {
+            return false;
+        }
+        received[slot] |= missing;
+        recoveredSequenceNumber = firstSequenceNumber + group * groupSize + index;
+        recoveredSlot = slot;
+        recoveredLength = length;
+        recovered++;
+        return true;
+    }
+
+    /**
+     * Returns the slot of a group, claiming it if it belongs to an older group,
+     * or -1 if it is taken by a newer one.
+     */
+    private int slot(long group) {
+        int slot = (int) (group % groups.length);
+        if (groups[slot] > group) {
+            return -1;
+        }
+        if (groups[slot] != group) {
+            groups[slot] = group;
+            if (xors[slot] == null) {
+                xors[slot] = ByteBuffer.allocate(maxPayload);
+            } else {
+                Arrays.fill(xors[slot].array(), (byte) 0);
+            }
+            lengthXors[slot] = 0;
+            received[slot] = 0;
+            counts[slot] = 0;
+        }
+        return slot;
+    }
+
+    /**
+     * Sequence number of the packet recovered by the last call that returned true.
+     */
+    public long getRecoveredSequenceNumber() {
+        return recoveredSequenceNumber;
+    }
+
+    /**
+     * Payload of the recovered packet: the first getRecoveredLength() bytes of the returned array,
+     * which is reused by later calls.
+     */
+    public byte[] getRecovered() {
+        return xors[recoveredSlot].array();
+    }
+
+    public int getRecoveredLength() {
+        return recoveredLength;
+    }
+
+    /**
+     * Number of packets recovered so far.
+     */
+    public long getRecoveredCount() {
+        return recovered;
+    }
+}
@@ -0,0 +1,130 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * ParityEncoder adds forward error correction to a SelectiveRepeatSender.
+ * For every group of groupSize consecutive DATA packets of a message it sends one PARITY
+ * packet carrying the XOR of their payloads, so the receiver can rebuild any single lost
+ * packet of the group without waiting for a retransmission (see ParityDecoder).
+ * Groups are counted from the first sequence number of the message; the FIN is not part of any.
+ * A PARITY packet takes no sequence number of its own: its header names the first packet
+ * of the group. Its payload is the number of packets in the group (1 byte), the XOR of
+ * their payload lengths (2 bytes) and the XOR of the payloads, zero-padded to the longest.
+ * Parity is sent once, right after the last packet of its group, and never acknowledged.
+ */
+public class ParityEncoder {
+
+    public static final int HEADER_LENGTH = 3;
+    public static final int MAX_GROUP_SIZE = SelectiveAck.BITMAP_BITS;
+
+    private static final int COUNT_OFFSET = Packet.MIN_LEN;
+    private static final int LENGTH_OFFSET = COUNT_OFFSET + 1;
+    private static final int XOR_OFFSET = Packet.MIN_LEN + HEADER_LENGTH;
+
+    private final int groupSize;
+    private final BufferPool bufferPool;
+    private ByteBuffer parity;
+    private long firstSequenceNumber;
+    private long groupStart;
+    private int count;
+    private int lengthXor;
+    private int longest;
+    private long sent;
+
+    /**
+     * maxPayload is the DATA payload size of the sender; a PARITY payload is HEADER_LENGTH bytes longer.
+     */
+    public ParityEncoder(int groupSize, int maxPayload) {
+        this.groupSize = groupSize;
+        this.bufferPool = BufferPool.forLength(XOR_OFFSET + maxPayload);
+        this.parity = bufferPool.acquire();
+        // A pooled buffer holds whatever it was last used for; the first group clears all of it
+        this.longest = parity.capacity() - XOR_OFFSET;
+    }
+
+    /**
+     * Returns the DATA payload size that leaves room for the parity header in a datagram
+     * of the negotiated payload size.
+     */
+    public static int dataPayload(int negotiatedPayload, int groupSize) {
+        return groupSize > 0 ? negotiatedPayload - HEADER_LENGTH : negotiatedPayload;
+    }
+
+    /**
+     * Starts the groups of a new message.
+     */
+    public void start(long firstSequenceNumber) {
+        this.firstSequenceNumber = firstSequenceNumber;
+        this.count = 0;
+    }
+
+    /**
+     * Folds in a DATA packet sent for the first time, encoded between 0 and the limit of packet.
+     * Packets have to come in sequence order. Returns true when the packet completes its group,
+     * either by count or because it is the last DATA packet of the message.
+     */
+    public boolean add(long sequenceNumber, ByteBuffer packet, boolean lastOfMessage) {
+        if (count == 0) {
+            parity.clear();
+            for (int i = XOR_OFFSET; i < XOR_OFFSET + longest; i++) {
+                parity.put(i, (byte) 0);
+            }
+            groupStart = sequenceNumber;
+            lengthXor = 0;
+            longest = 0;
+        }
+        int length = packet.limit() - Packet.MIN_LEN;
+        xor(parity, XOR_OFFSET, packet, Packet.MIN_LEN, length);
+        lengthXor ^= length;
+        longest = Math.max(longest, length);
+        count++;
+        return (sequenceNumber - firstSequenceNumber) % groupSize == groupSize - 1 || lastOfMessage;
+    }
+
+    /**
+     * Sends the PARITY packet of the group that add() just completed.
+     */
+    public void send(DatagramChannel channel, SocketAddress router, int peerAddress, int peerPort) throws IOException {
+        parity.clear();
+        PacketView.putHeader(parity, Packet.PacketType.PARITY, groupStart, peerAddress, peerPort);
+        parity.put(COUNT_OFFSET, (byte) count);
+        parity.putShort(LENGTH_OFFSET, (short) lengthXor);
+        parity.limit(XOR_OFFSET + longest).position(0);
+        channel.send(parity, router);
+        count = 0;
+        sent++;
+    }
+
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * Number of PARITY packets sent so far.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    public void close() {
+        bufferPool.release(parity);
+        parity = null;
+    }
+
+    /**
+     * XORs length bytes of src from srcOffset into dst at dstOffset, eight bytes at a time.
+     */
+    static void xor(ByteBuffer dst, int dstOffset, ByteBuffer src, int srcOffset, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            dst.putLong(dstOffset + i, dst.getLong(dstOffset + i) ^ src.getLong(srcOffset + i));
+        }
+        for (; i < length; i++) {
+            dst.put(dstOffset + i, (byte) (dst.get(dstOffset + i) ^ src.get(srcOffset + i)));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ReassemblyBuffer puts the payloads of one message back in sequence order.
+ * Out-of-order payloads are copied into a ring of fixed-size slots indexed by
+ * sequenceNumber % capacity; as soon as they extend the contiguous prefix they are
+ * appended to the message buffer and their slot is reused. No boxing, no String decoding.
+ * With a MessageSink the delivered payloads go to the sink instead, e.g. straight to a file.
+ */
+public class ReassemblyBuffer {
+
+    public static final int ACCEPTED = 0;
+    public static final int DUPLICATE = 1;
+    public static final int OUT_OF_WINDOW = 2;
+
+    private static final int INITIAL_MESSAGE_CAPACITY = 4096;
+
+    private final int capacity;
+    private final int slotSize;
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final boolean[] present;
+    private final boolean[] last;
+    private long nextExpected;
+    private boolean complete = false;
+    private final MessageSink sink;
+    private long deliveredBytes;
+    private ByteBuffer message;
+
+    public ReassemblyBuffer(long firstSequenceNumber, int capacity, int slotSize) {
+        this(firstSequenceNumber, capacity, slotSize, null);
+    }
+
+    /**
+     * Delivers payloads to sink; getMessage() then stays empty. A null sink keeps the message in memory.
+     */
+    public ReassemblyBuffer(long firstSequenceNumber, int capacity, int slotSize, MessageSink sink) {
+        this.nextExpected = firstSequenceNumber;
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.slots = new byte[capacity][];
+        this.lengths = new int[capacity];
+        this.present = new boolean[capacity];
+        this.last = new boolean[capacity];
+        this.message = ByteBuffer.allocate(sink == null ? INITIAL_MESSAGE_CAPACITY : 0);
+        this.sink = sink == null ? this::append : sink;
+    }
+
+    /**
+     * Stores a payload. isLast marks the FIN of the message, whose payload is not part of it.
+     * Returns ACCEPTED, DUPLICATE (already stored or delivered) or OUT_OF_WINDOW.
+     */
+    public int offer(long sequenceNumber, byte[] payload, boolean isLast) {
+        return offer(sequenceNumber, payload, payload.length, isLast);
+    }
+
+    /**
+     * Stores the first length bytes of payload, e.g. a packet rebuilt from parity.
+     */
+    public int offer(long sequenceNumber, byte[] payload, int length, boolean isLast) {
+        int result = check(sequenceNumber, length);
+        if (result == ACCEPTED) {
+            int slot = slot(sequenceNumber);
+            System.arraycopy(payload, 0, slots[slot], 0, length);
+            store(slot, length, isLast);
+        }
+        return result;
+    }
+
+    /**
+     * Same as offer(long, byte[], boolean) but copies the payload straight out of a received datagram.
+     */
+    public int offer(PacketView packet) {
+        long sequenceNumber = packet.getSequenceNumber();
+        int result = check(sequenceNumber, packet.getPayloadLength());
+        if (result == ACCEPTED) {
+            int slot = slot(sequenceNumber);
+            int length = packet.copyPayload(slots[slot], 0);
+            store(slot, length, packet.getType() == Packet.PacketType.FIN);
+        }
+        return result;
+    }
+
+    private int check(long sequenceNumber, int length) {
+        if (sequenceNumber < nextExpected) {
+            return DUPLICATE;
+        }
+        if (sequenceNumber >= nextExpected + capacity || complete || length > slotSize) {
+            return OUT_OF_WINDOW;
+        }
+        int slot = slot(sequenceNumber);
+        if (present[slot]) {
+            return DUPLICATE;
+        }
+        if (slots[slot] == null) {
+            slots[slot] = new byte[slotSize];
+        }
+        return ACCEPTED;
+    }
+
+    private void store(int slot, int length, boolean isLast) {
+        present[slot] = true;
+        last[slot] = isLast;
+        lengths[slot] = length;
+        deliverPrefix();
+    }
+
+    private void deliverPrefix() {
+        int slot = slot(nextExpected);
+        while (present[slot]) {
+            if (last[slot]) {
+                complete = true;
+            } else {
+                sink.write(slots[slot], lengths[slot]);
+                deliveredBytes += lengths[slot];
+            }
+            present[slot] = false;
+            nextExpected++;
+            if (complete) {
+                return;
+            }
+            slot = slot(nextExpected);
+        }
+    }
+
+    private void append(byte[] payload, int length) {
+        if (message.remaining() < length) {
+            int size = Math.max(message.capacity() * 2, message.position() + length);
+            ByteBuffer grown = ByteBuffer.allocate(size);
+            message.flip();
+            grown.put(message);
+            message = grown;
+        }
+        message.put(payload, 0, length);
+    }
+
+    public long getNextExpected() {
+        return nextExpected;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns a bitmap of the buffered payloads beyond the next expected one:
+     * bit i is set when nextExpected + 1 + i has been stored. See SelectiveAck.
+     */
+    public long getSelectiveAckBitmap() {
+        long bitmap = 0;
+        if (complete) {
+            return bitmap;
+        }
+        int span = Math.min(SelectiveAck.BITMAP_BITS, capacity - 1);
+        for (int i = 0; i < span; i++) {
+            if (present[slot(nextExpected + 1 + i)]) {
+                bitmap |= 1L << i;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Number of payload bytes delivered in order so far.
+     */
+    public long getDeliveredBytes() {
+        return deliveredBytes;
+    }
+
+    /**
+     * Returns the delivered prefix as a read-only buffer positioned at 0.
+     * Once isComplete() is true this is the whole message.
+     */
+    public ByteBuffer getMessage() {
+        ByteBuffer view = message.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    private int slot(long sequenceNumber) {
+        return (int) (sequenceNumber % capacity);
+    }
+}
@@ -0,0 +1,212 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RequestExecutor runs httpfs requests off the UDPServer event loop, so a slow disk or a large
+ * directory listing only delays its own response while the loop keeps ACKing everybody else.
+ * Each event loop submits through its own Loop: a worker answers the request and queues the
+ * response as a Completion on the Loop it came from, which is woken up and hands it to its
+ * connection with poll(). At most maxPending requests, over all loops, are queued, running
+ * or waiting to be picked up; submit() refuses further ones, and the server answers those with
+ * 503 Service Unavailable. How long requests wait and run is kept in LatencyHistograms.
+ */
+public class RequestExecutor implements RequestExecutorMBean {
+
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    /**
+     * A finished request. If httpfs failed, response is a 500 Internal Server Error.
+     */
+    static final class Completion {
+        final ServerConnection connection;
+        final MessageSource response;
+
+        Completion(ServerConnection connection, MessageSource response) {
+            this.connection = connection;
+            this.response = response;
+        }
+    }
+
+    /**
+     * The part of a RequestExecutor that one event loop submits to and takes completions from.
+     */
+    final class Loop {
+        private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+        private final Runnable wakeUp;
+
+        private Loop(Runnable wakeUp) {
+            this.wakeUp = wakeUp;
+        }
+
+        /**
+         * Queues the request of a connection. Returns false if maxPending requests are pending already.
+         */
+        boolean submit(ServerConnection connection, httpfs fileServer, RequestSink request) {
+            return RequestExecutor.this.submit(this, connection, fileServer, request);
+        }
+
+        /**
+         * The executor that POST bodies are written on, so their file I/O stays off the event loop too.
+         */
+        Executor getUploadExecutor() {
+            return executor;
+        }
+
+        /**
+         * Returns the next finished request of this loop, or null if there is none.
+         */
+        Completion poll() {
+            Completion completion = completions.poll();
+            if (completion != null) {
+                pending.decrementAndGet();
+                completed.increment();
+            }
+            return completion;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+    public RequestExecutor(ExecutorService executor, int maxPending) {
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * A virtual thread per request where the runtime has them (Java 21 on), otherwise a pool of
+     * platform daemon threads.
+     */
+    public static ExecutorService defaultExecutor(int threads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "httpfs-worker-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Returns a Loop whose completions are announced with wakeUp, e.g. Selector.wakeup.
+     */
+    Loop newLoop(Runnable wakeUp) {
+        return new Loop(wakeUp);
+    }
+
+    private boolean submit(Loop loop, ServerConnection connection, httpfs fileServer, RequestSink request) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> run(loop, connection, fileServer, request, queuedAt));
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    private void run(Loop loop, ServerConnection connection, httpfs fileServer, RequestSink request, long queuedAt) {
+        long start = System.nanoTime();
+        queueWait.record(start - queuedAt);
+        active.incrementAndGet();
+        MessageSource response = null;
+        try {
+            response = fileServer.respond(request);
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            request.getStats().onFailedRequest();
+            request.close();
+            response = fileServer.internalError();
+        } finally {
+            active.decrementAndGet();
+            serviceTime.record(System.nanoTime() - start);
+        }
+        loop.completions.offer(new Completion(connection, response));
+        loop.wakeUp.run();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Time requests waited for a worker.
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Time httpfs took to answer.
+     */
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    @Override
+    public int getPending() {
+        return pending.get();
+    }
+
+    @Override
+    public int getActive() {
+        return active.get();
+    }
+
+    @Override
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    @Override
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * Requests refused because maxPending were pending, answered with 503.
+     */
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+}
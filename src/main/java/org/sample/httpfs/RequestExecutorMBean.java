@@ -0,0 +1,21 @@
+package org.sample.httpfs;
+
+/**
+ * JMX view of a RequestExecutor. Its histograms are registered as LatencyHistogramMBeans of their own.
+ */
+public interface RequestExecutorMBean {
+
+    int getPending();
+
+    int getActive();
+
+    int getMaxPending();
+
+    long getSubmitted();
+
+    long getCompleted();
+
+    long getRejected();
+
+    long getFailed();
+}
@@ -0,0 +1,289 @@
+package org.sample.httpfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * RequestSink takes a request apart on the server as its payloads arrive in order.
+ * The request line and headers are kept in memory; once they are complete, the body of a POST
+ * goes to a FileUpload, so an upload only ever holds the reassembly window in memory.
+ * Any other request is small and is kept whole for httpfs.respond.
+ * With a writer executor the body is copied into pooled buffers and written by one task at a time
+ * on that executor, in arrival order, so creating and writing the file never blocks the event loop.
+ * isBacklogged() tells the connection to stop taking packets while the writes lag behind.
+ * Without one, e.g. in tests, the body is written on the calling thread.
+ */
+public class RequestSink implements MessageSink, Closeable {
+
+    static final int MAX_HEAD_LENGTH = 16 * 1024;
+    /**
+     * Body bytes that may wait for the writer before the connection holds back further packets.
+     */
+    static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    private static final byte[] END_OF_HEAD = {'\r', '\n', '\r', '\n'};
+
+    private final httpfs fileServer;
+    private final Executor writer;
+    private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private ByteBuffer head = ByteBuffer.allocate(1024);
+    private boolean headComplete = false;
+    // Set on the event loop before the first chunk is queued, which publishes it to the writer
+    private Path uploadTarget;
+    private FileUpload upload;
+    private volatile boolean discarded = false;
+    private volatile String errorStatus;
+    private TransferStats stats = new TransferStats();
+
+    public RequestSink(httpfs fileServer) {
+        this(fileServer, null);
+    }
+
+    /**
+     * Writes POST bodies on writer; null writes them on the thread that delivers the payloads.
+     */
+    public RequestSink(httpfs fileServer, Executor writer) {
+        this.fileServer = fileServer;
+        this.writer = writer;
+    }
+
+    /**
+     * Counts a failed upload into stats, e.g. the instance shared by all connections of a server.
+     */
+    public void setStats(TransferStats stats) {
+        this.stats = stats;
+    }
+
+    public TransferStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void write(byte[] payload, int length) {
+        if (errorStatus != null) {
+            return;
+        }
+        if (uploadTarget != null) {
+            writeBody(payload, 0, length);
+            return;
+        }
+        int scanFrom = Math.max(0, head.position() - (END_OF_HEAD.length - 1));
+        if (!append(payload, length) || headComplete) {
+            return;
+        }
+        int end = indexOfEndOfHead(scanFrom);
+        if (end >= 0) {
+            headComplete = true;
+            startBody(end + END_OF_HEAD.length);
+        }
+    }
+
+    private boolean append(byte[] payload, int length) {
+        if (head.position() + length > MAX_HEAD_LENGTH) {
+            errorStatus = "413 Payload Too Large";
+            return false;
+        }
+        if (head.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(MAX_HEAD_LENGTH, Math.max(head.capacity() * 2, head.position() + length)));
+            head.flip();
+            grown.put(head);
+            head = grown;
+        }
+        head.put(payload, 0, length);
+        return true;
+    }
+
+    private int indexOfEndOfHead(int from) {
+        byte[] bytes = head.array();
+        for (int i = from; i + END_OF_HEAD.length <= head.position(); i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Called once the headers are complete; POST bodies go to the upload from here on.
+     */
+    private void startBody(int bodyStart) {
+        String requestLine = firstLine();
+        if (!requestLine.contains("POST")) {
+            return;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            errorStatus = "400 Bad Request";
+            return;
+        }
+        uploadTarget = fileServer.uploadTarget(parts[1]);
+        if (uploadTarget == null) {
+            errorStatus = "403 Forbidden";
+            return;
+        }
+        if (writer == null) {
+            openUpload();
+        }
+        int bodyLength = head.position() - bodyStart;
+        head.position(bodyStart);
+        writeBody(head.array(), bodyStart, bodyLength);
+    }
+
+    private void writeBody(byte[] data, int offset, int length) {
+        if (writer == null) {
+            try {
+                upload.write(data, offset, length);
+            } catch (IOException e) {
+                fail();
+            }
+            return;
+        }
+        ByteBuffer chunk = BufferPool.forLength(length).acquire();
+        chunk.put(data, offset, length).flip();
+        queuedBytes.addAndGet(length);
+        chunks.offer(chunk);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                draining.set(false);
+                drain();
+            });
+        } catch (RejectedExecutionException e) {
+            // The server is shutting down; nothing else will get to the chunks
+            draining.set(false);
+            drain();
+        }
+    }
+
+    /**
+     * Opens the upload if it is not open yet and writes the queued chunks in order. Only one
+     * thread drains at a time; an upload that was discarded in the meantime is deleted.
+     */
+    private synchronized void drain() {
+        if (upload == null && uploadTarget != null && !discarded && errorStatus == null) {
+            openUpload();
+        }
+        ByteBuffer chunk;
+        while ((chunk = chunks.poll()) != null) {
+            int length = chunk.remaining();
+            try {
+                if (upload != null && !discarded && errorStatus == null) {
+                    upload.write(chunk);
+                }
+            } catch (IOException e) {
+                fail();
+            } finally {
+                queuedBytes.addAndGet(-length);
+                BufferPool.recycle(chunk);
+            }
+        }
+        if (discarded) {
+            closeUpload();
+        }
+    }
+
+    private void openUpload() {
+        try {
+            upload = new FileUpload(uploadTarget);
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    private void fail() {
+        stats.onFailedRequest();
+        errorStatus = "500 Internal Server Error";
+        closeUpload();
+    }
+
+    private String firstLine() {
+        byte[] bytes = head.array();
+        int end = 0;
+        while (end < head.position() && bytes[end] != '\r' && bytes[end] != '\n') {
+            end++;
+        }
+        return new String(bytes, 0, end, UTF_8);
+    }
+
+    /**
+     * Returns true while more than MAX_QUEUED_BYTES of the body wait to be written.
+     */
+    public boolean isBacklogged() {
+        return queuedBytes.get() > MAX_QUEUED_BYTES;
+    }
+
+    /**
+     * Writes what is still queued of the body on the calling thread, after any write in progress.
+     * httpfs calls it on a worker before it looks at the upload; the request must be complete.
+     */
+    void finishBody() {
+        if (writer != null && uploadTarget != null) {
+            drain();
+        }
+    }
+
+    /**
+     * Returns the status to answer with if the request cannot be served, otherwise null.
+     */
+    public String getErrorStatus() {
+        return errorStatus;
+    }
+
+    /**
+     * Returns the upload of a POST whose headers were complete, otherwise null.
+     * With a writer executor it is only opened once the first write ran, see finishBody().
+     */
+    public synchronized FileUpload getUpload() {
+        return upload;
+    }
+
+    /**
+     * Returns the request as received, without the body of an upload.
+     */
+    public ByteBuffer getHead() {
+        ByteBuffer view = head.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Discards an upload that was not committed. With a writer executor the file is deleted there.
+     */
+    @Override
+    public void close() {
+        discarded = true;
+        if (writer != null && uploadTarget != null) {
+            scheduleDrain();
+        } else {
+            closeUpload();
+        }
+    }
+
+    private synchronized void closeUpload() {
+        if (upload != null) {
+            try {
+                upload.close();
+            } catch (IOException e) {
+                System.out.println("Failed to discard upload: " + e);
+            }
+            upload = null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.sample.httpfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Response is an httpfs response split into status, headers and body.
+ * The status line may carry the protocol version ("HTTP/1.0 200 OK") or not ("200 OK", as
+ * directory listings do). Header names are case insensitive. The body is a read-only view of
+ * a copy of the response, so it stays valid after the connection moved on to the next request.
+ */
+public class Response {
+
+    private final int status;
+    private final String reason;
+    private final Map<String, String> headers;
+    private final ByteBuffer message;
+    private final ByteBuffer body;
+
+    Response(int status, String reason, Map<String, String> headers, ByteBuffer message, ByteBuffer body) {
+        this.status = status;
+        this.reason = reason;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.message = message.asReadOnlyBuffer();
+        this.body = body.asReadOnlyBuffer();
+    }
+
+    /**
+     * Parses the bytes between position and limit of message without moving its position.
+     * Throws IllegalArgumentException if there is no status code.
+     */
+    public static Response parse(ByteBuffer message) {
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        int headerEnd = indexOf(bytes, "\r\n\r\n");
+        int bodyStart = headerEnd < 0 ? bytes.length : headerEnd + 4;
+        String[] lines = new String(bytes, 0, headerEnd < 0 ? bytes.length : headerEnd, UTF_8).split("\r\n");
+
+        String statusLine = lines[0];
+        if (statusLine.startsWith("HTTP/")) {
+            int space = statusLine.indexOf(' ');
+            statusLine = space < 0 ? "" : statusLine.substring(space + 1);
+        }
+        int space = statusLine.indexOf(' ');
+        int status;
+        try {
+            status = Integer.parseInt(space < 0 ? statusLine : statusLine.substring(0, space));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("No status code in " + lines[0]);
+        }
+        String reason = space < 0 ? "" : statusLine.substring(space + 1);
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return new Response(status, reason, headers, ByteBuffer.wrap(bytes),
+                ByteBuffer.wrap(bytes, bodyStart, bytes.length - bodyStart).slice());
+    }
+
+    private static int indexOf(byte[] bytes, String separator) {
+        byte[] pattern = separator.getBytes(UTF_8);
+        outer:
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Status code, e.g. 200 or 404.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Reason phrase after the status code, e.g. "Not Found".
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the value of a header, or null if the response has none of that name.
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Returns the body; every call returns a view of its own, positioned at the start.
+     */
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    /**
+     * Returns the whole response as received, status line and headers included.
+     */
+    public ByteBuffer getMessage() {
+        return message.duplicate();
+    }
+
+    public String getBodyText() {
+        return UTF_8.decode(getBody()).toString();
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + reason;
+    }
+}
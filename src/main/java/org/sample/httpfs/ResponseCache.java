@@ -0,0 +1,112 @@
+package org.sample.httpfs;
+
+import java.nio.file.Path;
+
+/**
+ * ResponseCache keeps the contents of recently served files in memory, least recently used first out.
+ * The cache is bounded by the total size of the bodies it holds and only takes files up to
+ * maxEntryBytes; larger files are streamed from disk instead. An entry is only served while the
+ * file's last-modified time and size still match, and writes through httpfs invalidate it directly.
+ */
+public class ResponseCache {
+
+    /**
+     * A cached file body together with what it was validated against.
+     */
+    public static final class Entry {
+        final byte[] body;
+        final String contentType;
+        final long lastModified;
+        final long size;
+
+        public Entry(byte[] body, String contentType, long lastModified, long size) {
+            this.body = body;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+
+    private final long maxEntryBytes;
+    private final SizeBoundedLru<Path, Entry> entries;
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    public ResponseCache(long maxBytes, long maxEntryBytes) {
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.entries = new SizeBoundedLru<>(maxBytes, entry -> entry.body.length);
+    }
+
+    /**
+     * Returns true if a file of this size would be cached at all.
+     */
+    public boolean accepts(long size) {
+        return size <= maxEntryBytes;
+    }
+
+    /**
+     * Returns the entry for path if the file still has the given last-modified time and size.
+     * A stale entry is dropped and counts as a miss.
+     */
+    public synchronized Entry get(Path path, long lastModified, long size) {
+        Entry entry = entries.get(path);
+        if (entry != null && (entry.lastModified != lastModified || entry.size != size)) {
+            entries.remove(path);
+            invalidations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    public synchronized void put(Path path, Entry entry) {
+        if (!accepts(entry.body.length)) {
+            return;
+        }
+        entries.put(path, entry);
+    }
+
+    /**
+     * Drops the entry for path, e.g. after the file was written.
+     */
+    public synchronized void invalidate(Path path) {
+        if (entries.remove(path)) {
+            invalidations++;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return entries.getBytes();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return entries.getEvictions();
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ResponseCache[entries=%d, bytes=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d]",
+                entries.size(), entries.getBytes(), hits, misses, entries.getEvictions(), invalidations);
+    }
+}
@@ -3,122 +3,255 @@ package org.sample.httpfs;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.*;
 
 public class Router {
     private static final AtomicInteger queueSize = new AtomicInteger(0);
+    private static final RouterStats stats = new RouterStats(queueSize);
     private static final int MIN_LEN = 11;
-    private static final int MAX_LEN = 1024;
+    private static final int DEFAULT_MAX_QUEUE = 10000;
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
 
     private static Logger logger;
+    private static LogPipeline packetLog;
     private static double dropRate;
     private static long maxDelay;
     private static long seed;
     private static int port;
+    private static int maxQueue;
+    private static int workerCount;
+    private static DelayScheduler<Packet> delayed;
+    private static volatile boolean running;
+    private static volatile Selector activeSelector;
 
     static class Packet {
         byte type;
         int seqNum;
         InetSocketAddress toAddr;
         InetSocketAddress fromAddr;
-        byte[] payload;
-
-        byte[] toBytes() {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(bos);
-
-            try {
-                dos.writeByte(type);
-                dos.writeInt(seqNum);
-                dos.write(fromAddr.getAddress().getAddress());
-                dos.writeShort(fromAddr.getPort());
-                dos.write(payload);
-            } catch (IOException e) {
-                e.printStackTrace();
+        long flow;
+        // The whole datagram in a pooled buffer, header already rewritten for the receiver
+        ByteBuffer data;
+
+        @Override
+        public String toString() {
+            return String.format("#%d, %s -> %s, sz=%d", seqNum, fromAddr, toAddr, data.limit() - MIN_LEN);
+        }
+    }
+
+    /**
+     * Worker is one shard of the forwarding stage. The receive thread hands it the packets of its
+     * flows through a lock-free queue; the worker decides drop or delay and sends, so packets of
+     * one flow are forwarded in arrival order when there is no delay.
+     */
+    static class Worker implements Runnable {
+        final Queue<Packet> inbox = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pending = new AtomicInteger();
+        final DatagramChannel channel;
+        final Random rand;
+        volatile Thread thread;
+
+        Worker(DatagramChannel channel, Random rand) {
+            this.channel = channel;
+            this.rand = rand;
+        }
+
+        boolean offer(Packet p) {
+            if (pending.incrementAndGet() > maxQueue) {
+                pending.decrementAndGet();
+                return false;
             }
+            inbox.offer(p);
+            return true;
+        }
 
-            return bos.toByteArray();
+        void wakeUp() {
+            LockSupport.unpark(thread);
         }
 
         @Override
-        public String toString() {
-            return String.format("#%d, %s -> %s, sz=%d", seqNum, fromAddr, toAddr, payload.toString().length());
+        public void run() {
+            thread = Thread.currentThread();
+            while (!thread.isInterrupted()) {
+                Packet p;
+                while ((p = inbox.poll()) != null) {
+                    pending.decrementAndGet();
+                    process(channel, p, rand);
+                }
+                // An unpark between the last poll and here leaves a permit, so no wakeup is lost
+                LockSupport.park(this);
+            }
         }
     }
 
-    private static Packet parsePacket(InetSocketAddress fromAddr, byte[] data) throws IOException {
-    
-        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
-
+    /**
+     * Parses the header in place and rewrites its peer field from the receiver to the sender,
+     * so the datagram can be forwarded without copying.
+     */
+    private static Packet parsePacket(InetSocketAddress fromAddr, ByteBuffer buffer) throws IOException {
         Packet p = new Packet();
       
-        p.type = buffer.get();
-        System.out.println("type " + p.type);
-        p.seqNum = buffer.getInt();
-
-        byte[] ipBytes = new byte[4];
-        buffer.get(ipBytes);
-        int port = buffer.getShort() & 0xFFFF;
+        p.type = buffer.get(PacketView.TYPE_OFFSET);
+        p.seqNum = buffer.getInt(PacketView.SEQUENCE_OFFSET);
 
-        InetAddress toIp = InetAddress.getByAddress(ipBytes);
+        int port = buffer.getShort(PacketView.PEER_PORT_OFFSET) & 0xFFFF;
+        InetAddress toIp = PacketView.toInetAddress(buffer.getInt(PacketView.PEER_ADDRESS_OFFSET));
         if (toIp.isLoopbackAddress()) {
             toIp = fromAddr.getAddress();
         }
         p.toAddr = new InetSocketAddress(toIp, port);
         p.fromAddr = fromAddr;
 
-        p.payload = new byte[buffer.remaining()];
-        buffer.get(p.payload);
+        int fromIp = PacketView.toInt(fromAddr.getAddress());
+        buffer.putInt(PacketView.PEER_ADDRESS_OFFSET, fromIp);
+        buffer.putShort(PacketView.PEER_PORT_OFFSET, (short) fromAddr.getPort());
+        p.data = buffer;
+        p.flow = PacketView.peerKey(fromIp, fromAddr.getPort()) * 31 + PacketView.peerKey(PacketView.toInt(toIp), port);
 
         return p;
     }
 
-    private static void send(DatagramSocket socket, Packet p) {
+    private static void send(DatagramChannel channel, Packet p) {
         queueSize.decrementAndGet();
 
         try {
-            DatagramPacket packet = new DatagramPacket(p.toBytes(), p.toBytes().length, p.toAddr);
-            socket.send(packet);
-            logger.info(String.format("[queue=%d] packet %s is delivered", queueSize.get(), p));
-			if (p.type == 3 && UDPServer.fin) {
-				socket.close();
-			}
+            int length = p.data.remaining();
+            if (channel.send(p.data, p.toAddr) > 0) {
+                stats.onDelivered(length);
+                log(p, "delivered");
+            } else {
+                stats.onOverflow();
+                log(p, "dropped, send buffer is full");
+            }
         } catch (IOException e) {
             logger.warning(String.format("failed to deliver %s: %s", p, e));
+        } finally {
+            BufferPool.recycle(p.data);
         }
     }
 
-    private static void process(DatagramSocket socket, Packet p, Random rand) {
+    private static void process(DatagramChannel channel, Packet p, Random rand) {
         if (rand.nextDouble() < dropRate) {
-            logger.info(String.format("[queue=%d] packet %s is dropped", queueSize.get(), p));
+            stats.onDropped();
+            log(p, "dropped");
+            BufferPool.recycle(p.data);
             return;
         }
 
         queueSize.incrementAndGet();
         if (maxDelay <= 0) {
-            send(socket, p);
+            send(channel, p);
         } else {
             long delay = rand.nextInt(100) * maxDelay / 100;
-            logger.info(String.format("[queue=%d] packet %s is delayed for %d ms", queueSize.get(), p, delay));
-
-            new Thread(() -> {
-                try {
-                    Thread.sleep(delay);
-                    send(socket, p);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+            if (delayed.schedule(p, delay)) {
+                stats.onDelayed();
+                log(p, "delayed", delay);
+            } else {
+                queueSize.decrementAndGet();
+                stats.onOverflow();
+                log(p, "dropped, delay queue is full");
+                BufferPool.recycle(p.data);
+            }
+        }
+    }
+
+    private static void log(Packet p, String outcome) {
+        log(p, outcome, -1);
+    }
+
+    /**
+     * Records what happened to a packet in the app's LogPipeline, which formats it later on its
+     * own thread. Headless there is no pipeline and the RouterStats counters are all that is kept.
+     */
+    private static void log(Packet p, String outcome, long delay) {
+        LogPipeline pipeline = packetLog;
+        if (pipeline != null) {
+            pipeline.packet(outcome, p.seqNum, p.fromAddr, p.toAddr, p.data.limit() - MIN_LEN, queueSize.get(), delay);
+        }
+    }
+
+    /**
+     * Receive stage: drains every datagram that is ready on each wakeup and hands it to the
+     * worker owning its flow, then wakes the workers that got something.
+     */
+    private static void receiveLoop(DatagramChannel channel, Selector selector, Worker[] workers) throws IOException {
+        boolean[] signalled = new boolean[workers.length];
+        BufferPool largest = BufferPool.forLength(org.sample.httpfs.Packet.MAX_DATAGRAM_LEN);
+        ByteBuffer buffer = largest.acquire();
+        while (running) {
+            selector.select();
+            selector.selectedKeys().clear();
+
+            InetSocketAddress fromAddr;
+            while ((fromAddr = (InetSocketAddress) channel.receive(buffer)) != null) {
+                buffer.flip();
+                if (buffer.remaining() < MIN_LEN) {
+                    buffer.clear();
+                    continue;
                 }
-            }).start();
+
+                // Whatever payload size the endpoints negotiated, the datagram is received whole.
+                // Smaller ones are moved to a buffer of their size class, so queued packets do
+                // not each pin a 64 KB buffer.
+                ByteBuffer data = buffer;
+                BufferPool pool = BufferPool.forLength(buffer.remaining());
+                if (pool != largest) {
+                    data = pool.acquire();
+                    data.put(buffer).flip();
+                    buffer.clear();
+                } else {
+                    buffer = largest.acquire();
+                }
+
+                stats.onReceived();
+                Packet p = parsePacket(fromAddr, data);
+                int shard = Math.floorMod(LongHashMap.hash(p.flow), workers.length);
+                if (workers[shard].offer(p)) {
+                    signalled[shard] = true;
+                } else {
+                    stats.onOverflow();
+                    log(p, "dropped, worker queue is full");
+                    BufferPool.recycle(p.data);
+                }
+            }
+
+            for (int i = 0; i < workers.length; i++) {
+                if (signalled[i]) {
+                    signalled[i] = false;
+                    workers[i].wakeUp();
+                }
+            }
         }
     }
 
+    /**
+     * Without an app the router runs headless: per-packet records are dropped and only
+     * warnings reach the console. With the app, log records and per-packet records go
+     * through its LogPipeline.
+     */
     private static void initLogger(JavaFXApp App) {
     	try {
-            Handler uiLogHandler = new UILogHandler(App); 
             logger = Logger.getLogger("Router");
+            for (Handler handler : logger.getHandlers()) {
+                logger.removeHandler(handler);
+            }
+            if (App == null) {
+                packetLog = null;
+                logger.setLevel(Level.WARNING);
+                logger.setUseParentHandlers(true);
+                return;
+            }
+            packetLog = JavaFXApp.getLog();
+            Handler uiLogHandler = new UILogHandler(App); 
+            logger.setLevel(Level.INFO);
             logger.addHandler(uiLogHandler);
             logger.setUseParentHandlers(false);  
         } catch (Exception e) {
@@ -127,33 +260,81 @@ public class Router {
         }
     }
 
+    /**
+     * Counters of the running router, registered with JMX as "type=Router,port=<port>".
+     */
+    public static RouterStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Makes a running main() return; may be called from any thread.
+     */
+    public static void stop() {
+        running = false;
+        Selector selector = activeSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Arguments: drop rate, max delay in ms, port, and optionally the queue bound and the number of
+     * forwarding workers that flows are sharded across. A null app runs the router headless.
+     */
     public static void main(String[] args, JavaFXApp app) {
         dropRate = Double.parseDouble(args[0]);
         maxDelay = Long.parseLong(args[1]);
         seed = System.currentTimeMillis();
         port = Integer.parseInt(args[2]);
+        maxQueue = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_QUEUE;
+        workerCount = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        queueSize.set(0);
+        stats.reset();
+        running = true;
 
         initLogger(app);
 
-    
-        Random rand = new Random(seed);
-        logger.info(String.format("config: drop-rate=%.2f, max-delay=%d ms, seed=%d", dropRate, maxDelay, seed));
-
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            logger.info("router is listening at port " + port);
-
-            while (true) {
-                byte[] buffer = new byte[2048];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+        logger.info(String.format("config: drop-rate=%.2f, max-delay=%d ms, max-queue=%d, workers=%d, seed=%d",
+                dropRate, maxDelay, maxQueue, workerCount, seed));
 
-                InetSocketAddress fromAddr = new InetSocketAddress(packet.getAddress(), packet.getPort());
-                Packet p = parsePacket(fromAddr, packet.getData());
+        Thread[] threads = new Thread[workerCount];
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            activeSelector = selector;
+            Metrics.register("type=Router,port=" + port, stats);
+            // One thread releases every delayed packet; a full queue drops like a real router would
+            delayed = new DelayScheduler<>("router-delay", maxQueue, DelayScheduler.OverflowPolicy.DROP,
+                    p -> send(channel, p));
 
-                process(socket, p, rand);
+            Worker[] workers = new Worker[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Worker(channel, new Random(seed + i));
+                threads[i] = new Thread(workers[i], "router-worker-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
             }
+            logger.info("router is listening at port " + port);
+
+            receiveLoop(channel, selector, workers);
         } catch (IOException e) {
             logger.severe("Failed to run router: " + e);
+        } finally {
+            Metrics.unregister("type=Router,port=" + port);
+            activeSelector = null;
+            for (Thread thread : threads) {
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+            if (delayed != null) {
+                delayed.close();
+            }
         }
     }
 
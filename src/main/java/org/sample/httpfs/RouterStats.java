@@ -0,0 +1,112 @@
+package org.sample.httpfs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RouterStats counts what the Router does with the datagrams it receives: delivered, delayed,
+ * dropped on purpose, or dropped because a queue or the send buffer was full.
+ * Counters are updated by the receive, worker and delay threads at once and read through JMX.
+ */
+public class RouterStats implements RouterStatsMBean {
+
+    private final AtomicInteger queueSize;
+    private final LongAdder received = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder bytesDelivered = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private volatile long resetAt = System.nanoTime();
+
+    /**
+     * queueSize is the router's count of packets accepted for sending and not yet sent.
+     */
+    public RouterStats(AtomicInteger queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    void onReceived() {
+        received.increment();
+    }
+
+    void onDelivered(int length) {
+        delivered.increment();
+        bytesDelivered.add(length);
+    }
+
+    void onDelayed() {
+        delayed.increment();
+    }
+
+    void onDropped() {
+        dropped.increment();
+    }
+
+    void onOverflow() {
+        overflowed.increment();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return received.sum();
+    }
+
+    @Override
+    public long getPacketsDelivered() {
+        return delivered.sum();
+    }
+
+    @Override
+    public long getBytesDelivered() {
+        return bytesDelivered.sum();
+    }
+
+    @Override
+    public long getPacketsDelayed() {
+        return delayed.sum();
+    }
+
+    /**
+     * Packets dropped by the configured drop rate.
+     */
+    @Override
+    public long getPacketsDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Packets dropped because a worker queue, the delay queue or the send buffer was full.
+     */
+    @Override
+    public long getPacketsOverflowed() {
+        return overflowed.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueSize.get();
+    }
+
+    @Override
+    public double getBytesDeliveredPerSecond() {
+        return getBytesDelivered() / (Math.max(1, System.nanoTime() - resetAt) / 1e9);
+    }
+
+    @Override
+    public void reset() {
+        received.reset();
+        delivered.reset();
+        bytesDelivered.reset();
+        delayed.reset();
+        dropped.reset();
+        overflowed.reset();
+        resetAt = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RouterStats[received=%d, delivered=%d, delayed=%d, dropped=%d, overflowed=%d]",
+                getPacketsReceived(), getPacketsDelivered(), getPacketsDelayed(), getPacketsDropped(), getPacketsOverflowed());
+    }
+}
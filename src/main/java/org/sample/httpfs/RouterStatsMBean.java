@@ -0,0 +1,25 @@
+package org.sample.httpfs;
+
+/**
+ * JMX view of a RouterStats.
+ */
+public interface RouterStatsMBean {
+
+    long getPacketsReceived();
+
+    long getPacketsDelivered();
+
+    long getBytesDelivered();
+
+    long getPacketsDelayed();
+
+    long getPacketsDropped();
+
+    long getPacketsOverflowed();
+
+    int getQueueDepth();
+
+    double getBytesDeliveredPerSecond();
+
+    void reset();
+}
@@ -0,0 +1,76 @@
+package org.sample.httpfs;
+
+/**
+ * RttEstimator computes the retransmission timeout of one connection (RFC 6298).
+ * It keeps a smoothed RTT and its variance from ACKed packets, ignores samples of
+ * retransmitted packets (Karn's algorithm) and doubles the timeout on every expiry.
+ */
+public class RttEstimator {
+
+    public static final long INITIAL_RTO = 1000;
+    public static final long MIN_RTO = 20;
+    public static final long MAX_RTO = 4000;
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final long CLOCK_GRANULARITY = 1;
+
+    private final long minRto;
+    private final long maxRto;
+    private double srtt = -1;
+    private double rttvar;
+    private long rto;
+
+    public RttEstimator(long initialRto, long minRto, long maxRto) {
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+        this.rto = clamp(initialRto);
+    }
+
+    public RttEstimator() {
+        this(INITIAL_RTO, MIN_RTO, MAX_RTO);
+    }
+
+    /**
+     * Feeds the round trip time of a packet that was sent exactly once.
+     */
+    public void sample(long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        rto = clamp((long) Math.ceil(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar)));
+    }
+
+    /**
+     * Doubles the timeout after a retransmission timer expired.
+     */
+    public void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    public long getRto() {
+        return rto;
+    }
+
+    /**
+     * Returns the smoothed RTT, or -1 before the first sample.
+     */
+    public double getSrtt() {
+        return srtt;
+    }
+
+    public double getRttvar() {
+        return rttvar;
+    }
+
+    private long clamp(long value) {
+        return Math.max(minRto, Math.min(maxRto, value));
+    }
+}
@@ -0,0 +1,40 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SelectiveAck is the payload of ACK packets.
+ * It carries the cumulative acknowledgement (the next sequence number the receiver expects,
+ * everything below it has arrived) and a bitmap whose bit i is set when
+ * cumulative + 1 + i has arrived too. The header's sequence number still names the packet
+ * that triggered the ACK, which the sender uses for RTT samples.
+ * Like PacketView, the accessors read straight from the datagram and do not allocate.
+ */
+public class SelectiveAck {
+
+    public static final int LENGTH = 12;
+    public static final int BITMAP_BITS = Long.SIZE;
+
+    private SelectiveAck() {
+    }
+
+    public static void write(ByteBuffer buf, long cumulative, long bitmap) {
+        buf.putInt((int) cumulative);
+        buf.putLong(bitmap);
+    }
+
+    /**
+     * Returns false for ACKs from older peers, whose payload is the plain text "ACK".
+     */
+    public static boolean isPresent(PacketView ack) {
+        return ack.getPayloadLength() >= LENGTH;
+    }
+
+    public static long getCumulative(PacketView ack) {
+        return Integer.toUnsignedLong(ack.getPayloadInt(0));
+    }
+
+    public static long getBitmap(PacketView ack) {
+        return ack.getPayloadLong(4);
+    }
+}
@@ -0,0 +1,153 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * SelectiveRepeatReceiver accepts the DATA/FIN packets of one message in any order.
+ * Packets inside the receive window are buffered in a ReassemblyBuffer. Every packet is answered
+ * with a SelectiveAck describing everything received so far, so one ACK that gets through
+ * makes up for the ones that were lost; packets that were already delivered are answered too.
+ * With parity enabled, PARITY packets are handed to a ParityDecoder and every packet it
+ * rebuilds is stored as if it had arrived.
+ */
+public class SelectiveRepeatReceiver {
+
+    private final ReassemblyBuffer reassembly;
+    private final long firstSequenceNumber;
+    private final int windowSize;
+    private final int maxPayload;
+    private ParityDecoder parity;
+    private TransferStats stats;
+    private ByteBuffer ackBuffer = BufferPool.shared().acquire();
+
+    /**
+     * maxPayload is the DATA payload size negotiated for the connection; larger packets are not accepted.
+     */
+    public SelectiveRepeatReceiver(long firstSequenceNumber, int windowSize, int maxPayload, MessageSink sink) {
+        this.reassembly = new ReassemblyBuffer(firstSequenceNumber, windowSize, maxPayload, sink);
+        this.firstSequenceNumber = firstSequenceNumber;
+        this.windowSize = windowSize;
+        this.maxPayload = maxPayload;
+    }
+
+    public SelectiveRepeatReceiver(long firstSequenceNumber, int windowSize, MessageSink sink) {
+        this(firstSequenceNumber, windowSize, Packet.DEFAULT_PAYLOAD_LEN, sink);
+    }
+
+    public SelectiveRepeatReceiver(long firstSequenceNumber, int windowSize) {
+        this(firstSequenceNumber, windowSize, null);
+    }
+
+    public SelectiveRepeatReceiver(long firstSequenceNumber) {
+        this(firstSequenceNumber, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Accepts PARITY packets with groupSize DATA packets each, as agreed on in the handshake.
+     * Has to be called before the first packet arrives.
+     */
+    public void enableParity(int groupSize) {
+        this.parity = new ParityDecoder(firstSequenceNumber, groupSize, maxPayload, windowSize);
+    }
+
+    /**
+     * Counts the packets received into stats.
+     */
+    public void setStats(TransferStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Buffers the packet if it is new and inside the window.
+     * Returns true if the packet should be acknowledged.
+     */
+    public boolean accept(PacketView packet) {
+        if (stats != null) {
+            stats.onReceived(packet.getPayloadLength());
+        }
+        boolean wasComplete = reassembly.isComplete();
+        boolean acknowledge = offer(packet);
+        if (stats != null && !wasComplete && reassembly.isComplete()) {
+            stats.onMessageReceived();
+        }
+        return acknowledge;
+    }
+
+    private boolean offer(PacketView packet) {
+        if (packet.getType() == Packet.PacketType.PARITY) {
+            if (parity == null) {
+                return false;
+            }
+            if (parity.onParity(packet)) {
+                storeRecovered();
+            }
+            // Answered, so the sender learns about a recovered packet before its timer expires
+            return true;
+        }
+        int result = reassembly.offer(packet);
+        if (result == ReassemblyBuffer.DUPLICATE && stats != null) {
+            stats.onDuplicate();
+        }
+        if (result == ReassemblyBuffer.ACCEPTED && parity != null
+                && packet.getType() == Packet.PacketType.DATA && parity.onData(packet)) {
+            storeRecovered();
+        }
+        return result != ReassemblyBuffer.OUT_OF_WINDOW;
+    }
+
+    private void storeRecovered() {
+        if (stats != null) {
+            stats.onRecovered();
+        }
+        reassembly.offer(parity.getRecoveredSequenceNumber(), parity.getRecovered(), parity.getRecoveredLength(), false);
+    }
+
+    /**
+     * Number of packets rebuilt from parity instead of being retransmitted.
+     */
+    public long getRecoveredPackets() {
+        return parity == null ? 0 : parity.getRecoveredCount();
+    }
+
+    /**
+     * Acknowledges a DATA/FIN/PARITY packet back to its sender through the router,
+     * with the cumulative ACK and SACK bitmap of the receive window.
+     * The ACK of a PARITY packet names sequence number 0, which no sender window contains,
+     * so it is never taken for an RTT sample of the packet the parity stands in for.
+     */
+    public void sendAck(DatagramChannel channel, SocketAddress router, PacketView packet) throws IOException {
+        ackBuffer.clear();
+        long sequenceNumber = packet.getType() == Packet.PacketType.PARITY ? 0 : packet.getSequenceNumber();
+        PacketView.putHeader(ackBuffer, Packet.PacketType.ACK, sequenceNumber,
+                packet.getPeerAddress(), packet.getPeerPort());
+        SelectiveAck.write(ackBuffer, reassembly.getNextExpected(), reassembly.getSelectiveAckBitmap());
+        ackBuffer.flip();
+        channel.send(ackBuffer, router);
+    }
+
+    public boolean isComplete() {
+        return reassembly.isComplete();
+    }
+
+    public long getNextExpected() {
+        return reassembly.getNextExpected();
+    }
+
+    /**
+     * Returns the ACK buffer to the pool; the receiver must not send ACKs afterwards.
+     */
+    public void close() {
+        BufferPool.shared().release(ackBuffer);
+        ackBuffer = null;
+    }
+
+    /**
+     * Returns the message delivered so far, complete once isComplete() is true.
+     */
+    public ByteBuffer getMessage() {
+        return reassembly.getMessage();
+    }
+}
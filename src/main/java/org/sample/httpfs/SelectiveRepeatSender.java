@@ -0,0 +1,435 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * SelectiveRepeatSender keeps up to windowSize DATA/FIN packets of one message in flight.
+ * Packets are encoded from the MessageSource when they are (re)sent, so only the window,
+ * not the message, is ever in memory.
+ * Every in-flight packet has its own retransmission timer. An ACK clears every packet its
+ * SelectiveAck reports, so a lost ACK costs nothing once a later one arrives and only
+ * the real holes are resent when their timer expires.
+ * Timers use the retransmission timeout of the connection's RttEstimator.
+ * How many packets may be in flight is up to a CongestionControl, NewReno unless another is given.
+ * A packet is lost when its timer expires, or earlier when DUPLICATE_THRESHOLD later packets were
+ * ACKed; lost packets are resent first, as far as the congestion window allows.
+ * With parity enabled a ParityEncoder follows every group of new DATA packets with a PARITY packet.
+ */
+public class SelectiveRepeatSender {
+
+    // One cumulative ACK and the SelectiveAck bitmap cover the whole window
+    public static final int DEFAULT_WINDOW_SIZE = SelectiveAck.BITMAP_BITS;
+    public static final int DUPLICATE_THRESHOLD = 3;
+    public static final int MAX_RETRIES = 50;
+
+    private static final byte[] FIN_PAYLOAD = "FIN".getBytes();
+
+    private final DatagramChannel channel;
+    private final SocketAddress router;
+    private final int windowSize;
+    private final RttEstimator rtt;
+    private final CongestionControl congestionControl;
+    private final int maxPayload;
+    private final BufferPool bufferPool;
+    private ParityEncoder parity;
+    private TransferStats stats = new TransferStats();
+
+    private MessageSource source;
+    private int peerAddress;
+    private int peerPort;
+    private ByteBuffer sendBuffer;
+    private long firstSequenceNumber;
+    private long endSequenceNumber;
+
+    // Window bookkeeping, indexed by (sequenceNumber - firstSequenceNumber) % windowSize
+    private long base;
+    private long nextToSend;
+    private final boolean[] acked;
+    private final long[] sentAt;
+    private final long[] lastSentAt;
+    private final long[] deadlines;
+    private final int[] retries;
+    private final boolean[] lost;
+    private final boolean[] fastRetransmitted;
+    private int inFlight;
+    private boolean failed = false;
+    private long lastBackoff = Long.MIN_VALUE;
+
+    /**
+     * maxPayload is the DATA payload size negotiated for the connection. The congestion window
+     * is capped at windowSize, the receiver's window.
+     */
+    public SelectiveRepeatSender(DatagramChannel channel, SocketAddress router, int windowSize, int maxPayload, RttEstimator rtt, CongestionControl congestionControl) {
+        this.channel = channel;
+        this.router = router;
+        this.windowSize = windowSize;
+        this.rtt = rtt;
+        this.congestionControl = congestionControl;
+        this.maxPayload = maxPayload;
+        this.bufferPool = BufferPool.forLength(Packet.MIN_LEN + maxPayload);
+        this.sendBuffer = bufferPool.acquire();
+        this.acked = new boolean[windowSize];
+        this.sentAt = new long[windowSize];
+        this.lastSentAt = new long[windowSize];
+        this.deadlines = new long[windowSize];
+        this.retries = new int[windowSize];
+        this.lost = new boolean[windowSize];
+        this.fastRetransmitted = new boolean[windowSize];
+    }
+
+    public SelectiveRepeatSender(DatagramChannel channel, SocketAddress router, int maxPayload, RttEstimator rtt, CongestionControl congestionControl) {
+        this(channel, router, DEFAULT_WINDOW_SIZE, maxPayload, rtt, congestionControl);
+    }
+
+    public SelectiveRepeatSender(DatagramChannel channel, SocketAddress router, int maxPayload, RttEstimator rtt) {
+        this(channel, router, maxPayload, rtt, new NewRenoCongestionControl(DEFAULT_WINDOW_SIZE));
+    }
+
+    public SelectiveRepeatSender(DatagramChannel channel, SocketAddress router, RttEstimator rtt) {
+        this(channel, router, Packet.DEFAULT_PAYLOAD_LEN, rtt);
+    }
+
+    /**
+     * Counts this sender's packets and RTT samples into stats, e.g. one instance shared by all senders of a server.
+     */
+    public void setStats(TransferStats stats) {
+        this.stats = stats;
+    }
+
+    public TransferStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sends a PARITY packet for every groupSize DATA packets, as agreed on in the handshake.
+     */
+    public void enableParity(int groupSize) {
+        this.parity = new ParityEncoder(groupSize, maxPayload);
+    }
+
+    /**
+     * Starts sending a message to the given peer, in the layout of Packet.splitMessage:
+     * full DATA payloads from firstSequenceNumber on, then a FIN. The sender owns the
+     * source from now on and closes it when the next message starts or on close().
+     */
+    public void send(MessageSource source, long firstSequenceNumber, int peerAddress, int peerPort) {
+        closeSource();
+        this.source = source;
+        this.peerAddress = peerAddress;
+        this.peerPort = peerPort;
+        long dataPackets = (source.length() + maxPayload - 1) / maxPayload;
+        this.firstSequenceNumber = firstSequenceNumber;
+        this.endSequenceNumber = firstSequenceNumber + dataPackets + 1;
+        this.base = firstSequenceNumber;
+        this.nextToSend = firstSequenceNumber;
+        this.failed = false;
+        stats.onMessageSent();
+        this.inFlight = 0;
+        if (parity != null) {
+            parity.start(firstSequenceNumber);
+        }
+        for (int i = 0; i < windowSize; i++) {
+            acked[i] = false;
+            retries[i] = 0;
+            lost[i] = false;
+        }
+    }
+
+    /**
+     * Marks every packet whose timer expired as lost, then resends lost packets and sends new ones
+     * while the congestion window allows.
+     */
+    public void pump(long now) throws IOException {
+        if (source == null || failed) {
+            return;
+        }
+        for (long seq = base; seq < nextToSend; seq++) {
+            int slot = slot(seq);
+            if (!acked[slot] && !lost[slot] && deadlines[slot] <= now) {
+                // Back off once per timeout generation: only a packet sent after the last
+                // backoff proves the longer timeout is still too short
+                if (lastSentAt[slot] >= lastBackoff) {
+                    rtt.backoff();
+                    stats.onTimeout();
+                    congestionControl.onTimeout(nextToSend, inFlight, now);
+                    lastBackoff = now;
+                }
+                markLost(slot);
+            }
+        }
+        for (long seq = base; seq < nextToSend && inFlight < window(); seq++) {
+            int slot = slot(seq);
+            if (lost[slot]) {
+                if (++retries[slot] > MAX_RETRIES) {
+                    stats.onAbandoned();
+                    failed = true;
+                    return;
+                }
+                lost[slot] = false;
+                inFlight++;
+                transmit(seq);
+                stats.onRetransmit(sendBuffer.limit());
+                lastSentAt[slot] = now;
+                deadlines[slot] = now + rtt.getRto();
+            }
+        }
+        while (nextToSend < endSequenceNumber && nextToSend < base + windowSize && inFlight < window()) {
+            int slot = slot(nextToSend);
+            acked[slot] = false;
+            lost[slot] = false;
+            fastRetransmitted[slot] = false;
+            retries[slot] = 0;
+            sentAt[slot] = now;
+            lastSentAt[slot] = now;
+            deadlines[slot] = now + rtt.getRto();
+            inFlight++;
+            transmit(nextToSend);
+            stats.onSent(sendBuffer.limit());
+            if (parity != null && nextToSend < endSequenceNumber - 1
+                    && parity.add(nextToSend, sendBuffer, nextToSend == endSequenceNumber - 2)) {
+                parity.send(channel, router, peerAddress, peerPort);
+                stats.onParitySent();
+            }
+            nextToSend++;
+        }
+    }
+
+    private int window() {
+        return Math.max(1, Math.min(congestionControl.getWindow(), windowSize));
+    }
+
+    private void markLost(int slot) {
+        lost[slot] = true;
+        inFlight--;
+        deadlines[slot] = Long.MAX_VALUE;
+    }
+
+    /**
+     * Handles an ACK packet, using its SelectiveAck when the peer sent one.
+     */
+    public void onAck(PacketView ack, long now) {
+        if (SelectiveAck.isPresent(ack)) {
+            onSelectiveAck(ack.getSequenceNumber(), SelectiveAck.getCumulative(ack), SelectiveAck.getBitmap(ack), now);
+        } else {
+            onAck(ack.getSequenceNumber(), now);
+        }
+    }
+
+    /**
+     * Marks the packet with the given sequence number as delivered and slides the window.
+     * Returns false if the ACK does not belong to the current window.
+     */
+    public boolean onAck(long sequenceNumber, long now) {
+        if (source == null || sequenceNumber < base || sequenceNumber >= nextToSend) {
+            return false;
+        }
+        sample(sequenceNumber, now);
+        long oldBase = base;
+        int oldInFlight = inFlight;
+        markAcked(sequenceNumber);
+        slide();
+        onProgress(oldBase, oldInFlight, now);
+        return true;
+    }
+
+    /**
+     * Marks everything below cumulative and every packet set in bitmap as delivered
+     * (bit i stands for cumulative + 1 + i) and slides the window.
+     * sequenceNumber is the packet that triggered the ACK and is the only one sampled for RTT.
+     */
+    public void onSelectiveAck(long sequenceNumber, long cumulative, long bitmap, long now) {
+        if (source == null) {
+            return;
+        }
+        if (sequenceNumber >= base && sequenceNumber < nextToSend) {
+            sample(sequenceNumber, now);
+        }
+        long oldBase = base;
+        int oldInFlight = inFlight;
+        for (long seq = base; seq < Math.min(cumulative, nextToSend); seq++) {
+            markAcked(seq);
+        }
+        while (bitmap != 0) {
+            long seq = cumulative + 1 + Long.numberOfTrailingZeros(bitmap);
+            if (seq >= base && seq < nextToSend) {
+                markAcked(seq);
+            }
+            bitmap &= bitmap - 1;
+        }
+        slide();
+        onProgress(oldBase, oldInFlight, now);
+    }
+
+    /**
+     * Tells the congestion control what an ACK changed and marks packets with at least
+     * DUPLICATE_THRESHOLD ACKed packets above them as lost, each once; a lost retransmission
+     * is left to its timer.
+     */
+    private void onProgress(long oldBase, int oldInFlight, long now) {
+        if (base > oldBase) {
+            congestionControl.onAck((int) (base - oldBase), base, now);
+        }
+        boolean found = false;
+        int ackedAbove = 0;
+        for (long seq = nextToSend - 1; seq >= base; seq--) {
+            int slot = slot(seq);
+            if (acked[slot]) {
+                ackedAbove++;
+            } else if (ackedAbove >= DUPLICATE_THRESHOLD && !lost[slot] && !fastRetransmitted[slot]) {
+                fastRetransmitted[slot] = true;
+                markLost(slot);
+                stats.onFastRetransmit();
+                found = true;
+            }
+        }
+        if (found) {
+            congestionControl.onLoss(nextToSend, oldInFlight, now);
+        }
+    }
+
+    private void sample(long sequenceNumber, long now) {
+        int slot = slot(sequenceNumber);
+        // Karn's algorithm: the ACK of a retransmitted packet is ambiguous, so it is not sampled
+        if (!acked[slot] && retries[slot] == 0) {
+            rtt.sample(now - sentAt[slot]);
+            stats.getRtt().recordMillis(now - sentAt[slot]);
+        }
+    }
+
+    private void markAcked(long sequenceNumber) {
+        int slot = slot(sequenceNumber);
+        if (acked[slot]) {
+            return;
+        }
+        acked[slot] = true;
+        if (lost[slot]) {
+            lost[slot] = false;
+        } else {
+            inFlight--;
+        }
+    }
+
+    private void slide() {
+        while (base < nextToSend && acked[slot(base)]) {
+            acked[slot(base)] = false;
+            base++;
+        }
+    }
+
+    /**
+     * Marks the whole message as delivered, e.g. when the peer's reply proves it was received.
+     */
+    public void acknowledgeAll() {
+        if (source != null && nextToSend == endSequenceNumber) {
+            base = endSequenceNumber;
+            inFlight = 0;
+        }
+    }
+
+    /**
+     * Returns the earliest retransmission deadline, or Long.MAX_VALUE when nothing is in flight.
+     */
+    public long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (long seq = base; seq < nextToSend; seq++) {
+            int slot = slot(seq);
+            if (!acked[slot] && deadlines[slot] < next) {
+                next = deadlines[slot];
+            }
+        }
+        return next;
+    }
+
+    public boolean isDone() {
+        return source == null || failed || base == endSequenceNumber;
+    }
+
+    /**
+     * Returns the send buffer to the pool and closes the source; the sender must not be pumped afterwards.
+     */
+    public void close() {
+        bufferPool.release(sendBuffer);
+        sendBuffer = null;
+        if (parity != null) {
+            parity.close();
+        }
+        closeSource();
+    }
+
+    private void closeSource() {
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close message source: " + e);
+            }
+            source = null;
+        }
+    }
+
+    public int getMaxPayload() {
+        return maxPayload;
+    }
+
+    public CongestionControl getCongestionControl() {
+        return congestionControl;
+    }
+
+    /**
+     * Packets sent and neither ACKed nor found lost.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Number of PARITY packets sent, 0 without parity.
+     */
+    public long getParityPacketsSent() {
+        return parity == null ? 0 : parity.getSent();
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    public long getEndSequenceNumber() {
+        return endSequenceNumber;
+    }
+
+    /**
+     * Encodes the packet with the given sequence number into the send buffer and sends it.
+     * Payloads are read from the source directly behind the header, without a copy on the heap.
+     */
+    private void transmit(long sequenceNumber) throws IOException {
+        sendBuffer.clear();
+        if (sequenceNumber == endSequenceNumber - 1) {
+            PacketView.putHeader(sendBuffer, Packet.PacketType.FIN, sequenceNumber, peerAddress, peerPort);
+            sendBuffer.put(FIN_PAYLOAD);
+        } else {
+            PacketView.putHeader(sendBuffer, Packet.PacketType.DATA, sequenceNumber, peerAddress, peerPort);
+            long offset = (sequenceNumber - firstSequenceNumber) * maxPayload;
+            sendBuffer.limit(sendBuffer.position() + (int) Math.min(maxPayload, source.length() - offset));
+            while (sendBuffer.hasRemaining()) {
+                int n = source.read(sendBuffer, offset);
+                if (n <= 0) {
+                    throw new IOException("Message source ended early at " + offset);
+                }
+                offset += n;
+            }
+        }
+        sendBuffer.flip();
+        channel.send(sendBuffer, router);
+    }
+
+    private int slot(long sequenceNumber) {
+        return (int) ((sequenceNumber - firstSequenceNumber) % windowSize);
+    }
+}
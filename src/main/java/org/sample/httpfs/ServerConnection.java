@@ -0,0 +1,349 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.function.Supplier;
+
+/**
+ * ServerConnection is the state machine of one client exchange on the server.
+ * It never blocks: the UDPServer event loop feeds it packets and timer ticks,
+ * and it answers through the shared channel.
+ * A keep-alive connection goes IDLE after a response instead of CLOSED and takes the next
+ * request, numbered right after the response's FIN, without a new handshake.
+ * A complete request is answered by httpfs on a RequestExecutor worker while the connection is
+ * PROCESSING; the event loop passes the response back in through onResponse().
+ */
+public class ServerConnection {
+
+    public static enum State {
+        HANDSHAKE, RECEIVING, PROCESSING, SENDING, IDLE, CLOSED
+    }
+
+    private final DatagramChannel channel;
+    private final httpfs fileServer;
+    private final InetSocketAddress client;
+    private final long peerKey;
+    private final int connectionId;
+    private final boolean keepAlive;
+    private SocketAddress router;
+    private final RttEstimator rtt = new RttEstimator();
+    private RequestSink request;
+    private SelectiveRepeatReceiver receiver;
+    private SelectiveRepeatSender sender;
+    private final int localMaxPayload;
+    private final int localMaxParityGroupSize;
+    private final Supplier<CongestionControl> congestionControl;
+    private final TransferStats stats;
+    private final RequestExecutor.Loop requests;
+    private int maxPayload;
+    private int parityGroupSize;
+    private State state = State.HANDSHAKE;
+    private long lastActivity;
+    private long requestStartedAt;
+    private long scheduledAt = Long.MAX_VALUE;
+    private boolean released = false;
+
+    /**
+     * localMaxPayload is the largest DATA payload the server accepts; the connection uses the
+     * smaller of it and the client's proposal; the same goes for localMaxParityGroupSize, where 0
+     * turns parity off. congestionControl creates the window policy of the response sender.
+     * Both directions and the request latency are counted into stats. Requests are answered through
+     * the RequestExecutor of the connection's event loop, or right away on the calling thread if it is null.
+     */
+    public ServerConnection(DatagramChannel channel, SocketAddress router, httpfs fileServer, PacketView synPacket,
+                            int localMaxPayload, int localMaxParityGroupSize,
+                            Supplier<CongestionControl> congestionControl, TransferStats stats,
+                            RequestExecutor.Loop requests) throws IOException {
+        this.channel = channel;
+        this.router = router;
+        this.client = new InetSocketAddress(PacketView.toInetAddress(synPacket.getPeerAddress()), synPacket.getPeerPort());
+        this.peerKey = synPacket.getPeerKey();
+        this.fileServer = fileServer;
+        Handshake handshake = Handshake.fromBuffer(synPacket.payload());
+        this.connectionId = handshake.getConnectionId();
+        this.keepAlive = handshake.isKeepAlive();
+        this.lastActivity = System.currentTimeMillis();
+        this.localMaxPayload = localMaxPayload;
+        this.localMaxParityGroupSize = localMaxParityGroupSize;
+        this.congestionControl = congestionControl;
+        this.stats = stats;
+        this.requests = requests;
+        negotiate(synPacket, handshake);
+    }
+
+    public ServerConnection(DatagramChannel channel, SocketAddress router, httpfs fileServer, PacketView synPacket) throws IOException {
+        this(channel, router, fileServer, synPacket, Packet.DEFAULT_PAYLOAD_LEN, 0,
+                () -> new NewRenoCongestionControl(SelectiveRepeatSender.DEFAULT_WINDOW_SIZE), new TransferStats(), null);
+    }
+
+    /**
+     * Settles the payload size and parity group size for a SYN. A client whose probe got lost
+     * retries with a smaller proposal, so a repeated SYN may change them before any data was exchanged.
+     */
+    private void negotiate(PacketView synPacket, Handshake handshake) {
+        int agreed = Math.max(1, Math.min(handshake.getMaxPayload(), localMaxPayload));
+        int groupSize = Math.min(handshake.getParityGroupSize(), Math.min(localMaxParityGroupSize, ParityEncoder.MAX_GROUP_SIZE));
+        if (agreed <= ParityEncoder.HEADER_LENGTH) {
+            groupSize = 0;
+        }
+        if (sender != null && agreed == maxPayload && groupSize == parityGroupSize) {
+            return;
+        }
+        maxPayload = agreed;
+        parityGroupSize = groupSize;
+        if (sender != null) {
+            sender.close();
+        }
+        sender = new SelectiveRepeatSender(channel, router, ParityEncoder.dataPayload(maxPayload, parityGroupSize),
+                rtt, congestionControl.get());
+        sender.setStats(stats);
+        if (parityGroupSize > 0) {
+            sender.enableParity(parityGroupSize);
+        }
+        expectRequest(synPacket.getSequenceNumber() + 2);
+    }
+
+    /**
+     * Prepares for a request starting at firstSequenceNumber, dropping what was left of the previous one.
+     */
+    private void expectRequest(long firstSequenceNumber) {
+        if (receiver != null) {
+            receiver.close();
+            request.close();
+        }
+        this.request = new RequestSink(fileServer, requests == null ? null : requests.getUploadExecutor());
+        request.setStats(stats);
+        this.receiver = new SelectiveRepeatReceiver(firstSequenceNumber, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE,
+                ParityEncoder.dataPayload(maxPayload, parityGroupSize), request);
+        if (parityGroupSize > 0) {
+            receiver.enableParity(parityGroupSize);
+        }
+        receiver.setStats(stats);
+    }
+
+    /**
+     * Handles one inbound packet of this connection. A CLOSED connection ignores them: its
+     * buffers may have been released, and the exchange is over either way.
+     */
+    public void onPacket(SocketAddress router, PacketView packet, long now) throws IOException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        this.router = router;
+        this.lastActivity = now;
+        switch (packet.getType()) {
+            case SYN:
+                handleSynPacket(packet);
+                break;
+            case ACK:
+                handleAckPacket(packet, now);
+                break;
+            case DATA:
+            case FIN:
+            case PARITY:
+                handleDataPacket(packet, now);
+                break;
+            default:
+                stats.onInvalid();
+        }
+    }
+
+    /**
+     * Sends what the window allows and retransmits expired packets.
+     */
+    public void onTimer(long now) throws IOException {
+        if (state != State.SENDING) {
+            return;
+        }
+        sender.pump(now);
+        if (sender.isDone()) {
+            if (sender.hasFailed()) {
+                state = State.CLOSED;
+            } else if (keepAlive) {
+                stats.getRequestLatency().recordMillis(now - requestStartedAt);
+                state = State.IDLE;
+                expectRequest(sender.getEndSequenceNumber());
+            } else {
+                stats.getRequestLatency().recordMillis(now - requestStartedAt);
+                state = State.CLOSED;
+            }
+        }
+    }
+
+    /**
+     * Returns the time of the next retransmission, or Long.MAX_VALUE if no timer is armed.
+     */
+    public long nextDeadline() {
+        return state == State.SENDING ? sender.nextDeadline() : Long.MAX_VALUE;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public InetSocketAddress getClient() {
+        return client;
+    }
+
+    /**
+     * Key of the client endpoint, as PacketView.getPeerKey() gives it for the client's packets.
+     */
+    long getPeerKey() {
+        return peerKey;
+    }
+
+    /**
+     * Returns true once close() released the connection's buffers; it must then be forgotten.
+     */
+    boolean isReleased() {
+        return released;
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * DATA payload size agreed on in the handshake.
+     */
+    public int getMaxPayload() {
+        return maxPayload;
+    }
+
+    /**
+     * DATA packets per PARITY packet agreed on in the handshake, 0 without parity.
+     */
+    public int getParityGroupSize() {
+        return parityGroupSize;
+    }
+
+    /**
+     * Sender of the responses, e.g. to watch its congestion window.
+     */
+    public SelectiveRepeatSender getSender() {
+        return sender;
+    }
+
+    /**
+     * Returns the time the client was last heard from.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Deadline this connection is queued under in the server's timer queue.
+     */
+    long getScheduledAt() {
+        return scheduledAt;
+    }
+
+    void setScheduledAt(long scheduledAt) {
+        this.scheduledAt = scheduledAt;
+    }
+
+    /**
+     * Stops all timers and returns the pooled buffers, e.g. when the server evicts the connection.
+     */
+    public void close() {
+        boolean processing = state == State.PROCESSING;
+        state = State.CLOSED;
+        if (!released) {
+            released = true;
+            sender.close();
+            receiver.close();
+            // A worker still owns the request; onResponse() closes it once the worker is done
+            if (!processing) {
+                request.close();
+            }
+        }
+    }
+
+    private void handleSynPacket(PacketView packet) throws IOException {
+        // A repeated SYN means our SYN-ACK was lost; once data flows the client has it already
+        if (state != State.HANDSHAKE) {
+            return;
+        }
+        negotiate(packet, Handshake.fromBuffer(packet.payload()));
+        // Padded to the agreed size, so the client only completes the handshake if such packets get through
+        Handshake handshake = new Handshake(connectionId, keepAlive ? Handshake.KEEP_ALIVE : 0, maxPayload, parityGroupSize);
+        Packet response = new Packet.Builder()
+            .setType(Packet.PacketType.SYNACK)
+            .setSequenceNumber(packet.getSequenceNumber() + 1)
+            .setPeerAddress(client.getAddress())
+            .setPortNumber(client.getPort())
+            .setPayload(handshake.toBytes(maxPayload))
+            .create();
+
+        response.sendPacket(channel, router);
+    }
+
+    private void handleAckPacket(PacketView packet, long now) throws IOException {
+        if (state == State.SENDING) {
+            sender.onAck(packet, now);
+            onTimer(now);
+        }
+    }
+
+    private void handleDataPacket(PacketView packet, long now) throws IOException {
+        // The next request proves the client has the whole response, even if its last ACKs were lost
+        if (state == State.SENDING && keepAlive && packet.getSequenceNumber() >= sender.getEndSequenceNumber()) {
+            sender.acknowledgeAll();
+            onTimer(now);
+        }
+        if (state == State.HANDSHAKE || state == State.IDLE) {
+            state = State.RECEIVING;
+            requestStartedAt = now;
+        }
+        // An upload whose writes lag behind gets no further packets acknowledged, so its client backs off
+        if (state == State.RECEIVING && request.isBacklogged()) {
+            return;
+        }
+        if (receiver.accept(packet)) {
+            receiver.sendAck(channel, router, packet);
+        }
+        if (state == State.RECEIVING && receiver.isComplete()) {
+            handleFinPacket(now);
+        }
+    }
+
+    private void handleFinPacket(long now) throws IOException {
+        state = State.PROCESSING;
+        if (requests == null) {
+            MessageSource response;
+            try {
+                response = fileServer.respond(request);
+            } catch (IOException | RuntimeException e) {
+                stats.onFailedRequest();
+                request.close();
+                response = fileServer.internalError();
+            }
+            onResponse(response, now);
+        } else if (!requests.submit(this, fileServer, request)) {
+            onResponse(fileServer.unavailable(), now);
+        }
+    }
+
+    /**
+     * Starts sending the response to the request being processed; a failed request is answered
+     * too, with 500 Internal Server Error. A connection that was closed in the meantime only
+     * releases the response and the request.
+     */
+    public void onResponse(MessageSource response, long now) throws IOException {
+        if (state != State.PROCESSING) {
+            response.close();
+            request.close();
+            return;
+        }
+        long firstSequenceNumber = receiver.getNextExpected();
+        sender.send(response, firstSequenceNumber, PacketView.toInt(client.getAddress()), client.getPort());
+        state = State.SENDING;
+        onTimer(now);
+    }
+}
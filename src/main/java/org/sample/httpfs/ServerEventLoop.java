@@ -0,0 +1,344 @@
+package org.sample.httpfs;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ServerEventLoop is one event loop of a UDPServer. It owns a Selector, the connections pinned
+ * to it and their timers, so connection state is only ever touched by one thread.
+ * A connection belongs to the loop its client endpoint hashes to. The loop that reads the
+ * server's channel copies a datagram of another loop's client into a pooled buffer and hands
+ * it over through that loop's inbox; with a single loop every datagram is dispatched straight
+ * from the receive buffer. Every loop sends on the channel, only the reading one receives.
+ */
+public class ServerEventLoop implements Runnable {
+
+    /**
+     * A datagram read by another loop, with the router it came from.
+     */
+    private static final class Handover {
+        final SocketAddress router;
+        final ByteBuffer data;
+
+        Handover(SocketAddress router, ByteBuffer data) {
+            this.router = router;
+            this.data = data;
+        }
+    }
+
+    private final UDPServer server;
+    private final int index;
+    private final DatagramChannel channel;
+    private final boolean reading;
+    private final Selector selector;
+    private final RequestExecutor.Loop requests;
+    private final Queue<Handover> inbox = new ConcurrentLinkedQueue<>();
+    private final LongHashMap<ServerConnection> connections = new LongHashMap<>();
+    private final PacketView packet = new PacketView();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private ServerEventLoop[] loops = {this};
+    private boolean[] signalled = new boolean[1];
+    private ByteBuffer buffer;
+    private long nextEviction = 0;
+
+    /**
+     * channel is read by this loop only if reading is true; the server closes it after the loops.
+     */
+    public ServerEventLoop(UDPServer server, int index, DatagramChannel channel, boolean reading) throws IOException {
+        this.server = server;
+        this.index = index;
+        this.channel = channel;
+        this.reading = reading;
+        this.selector = Selector.open();
+        if (reading) {
+            channel.register(selector, OP_READ);
+        }
+        this.requests = server.getRequestExecutor().newLoop(selector::wakeup);
+    }
+
+    /**
+     * Tells the loop about all loops of the server, itself at its index, to hand datagrams over to.
+     */
+    void setLoops(ServerEventLoop[] loops) {
+        this.loops = loops;
+        this.signalled = new boolean[loops.length];
+    }
+
+    @Override
+    public void run() {
+        // Room for any datagram: one larger than negotiated is rejected, never silently truncated
+        buffer = BufferPool.forLength(Packet.MAX_DATAGRAM_LEN).acquire();
+        try {
+            eventLoop();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // One loop gone takes the whole server down, as the single event loop did
+            server.stop();
+            closeConnections();
+            BufferPool.recycle(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Makes the loop look at the server's stop flag, its inbox and its completions; may be called from any thread.
+     */
+    void wakeUp() {
+        selector.wakeup();
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Closes the selector and drops datagrams still handed over; the loop must have returned.
+     */
+    void close() throws IOException {
+        selector.close();
+        Handover handover;
+        while ((handover = inbox.poll()) != null) {
+            BufferPool.recycle(handover.data);
+        }
+    }
+
+    private void eventLoop() throws IOException {
+        while (!server.isStopped()) {
+            long deadline = nextEviction;
+            if (!timers.isEmpty() && timers.peek().at < deadline) {
+                deadline = timers.peek().at;
+            }
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout > 0) {
+                selector.select(timeout);
+            } else {
+                selector.selectNow();
+            }
+            selector.selectedKeys().clear();
+
+            receivePackets();
+            drainInbox();
+
+            long now = System.currentTimeMillis();
+            completeRequests(now);
+            runTimers(now);
+            if (now >= nextEviction) {
+                evictConnections(now);
+                nextEviction = now + UDPServer.EVICTION_INTERVAL;
+            }
+        }
+    }
+
+    /**
+     * Drains every datagram queued on the channel, then wakes the loops that were handed some.
+     */
+    private void receivePackets() throws IOException {
+        if (!reading) {
+            return;
+        }
+        while (true) {
+            buffer.clear();
+            SocketAddress router = channel.receive(buffer);
+            if (router == null) break;
+
+            buffer.flip();
+            packet.wrap(buffer);
+            if (!packet.isValid()) continue;
+
+            int owner = owner(packet.getPeerKey());
+            if (owner == index) {
+                dispatch(router, packet);
+            } else {
+                ByteBuffer data = BufferPool.forLength(buffer.remaining()).acquire();
+                data.put(buffer).flip();
+                loops[owner].inbox.offer(new Handover(router, data));
+                signalled[owner] = true;
+            }
+        }
+        for (int i = 0; i < loops.length; i++) {
+            if (signalled[i]) {
+                signalled[i] = false;
+                loops[i].wakeUp();
+            }
+        }
+    }
+
+    private void drainInbox() throws IOException {
+        Handover handover;
+        while ((handover = inbox.poll()) != null) {
+            try {
+                if (packet.wrap(handover.data).isValid()) {
+                    dispatch(handover.router, packet);
+                }
+            } finally {
+                BufferPool.recycle(handover.data);
+            }
+        }
+    }
+
+    private int owner(long client) {
+        return loops.length == 1 ? 0 : Math.floorMod(LongHashMap.hash(client), loops.length);
+    }
+
+    private void dispatch(SocketAddress router, PacketView packet) throws IOException {
+        long client = packet.getPeerKey();
+        ServerConnection connection = connections.get(client);
+        if (packet.getType() == Packet.PacketType.SYN) {
+            int connectionId = Handshake.fromBuffer(packet.payload()).getConnectionId();
+            // A SYN with a new connection id means the client started over on the same port
+            if (connection == null || connection.getConnectionId() != connectionId) {
+                if (connection != null) {
+                    evict(connection);
+                }
+                connection = new ServerConnection(channel, router, server.getFileServer(), packet, server.getMaxPayload(),
+                        server.getMaxParityGroupSize(), server.getCongestionControl(), server.getStats(), requests);
+                connections.put(client, connection);
+            }
+        }
+        if (connection == null) {
+            server.getStats().onUnknownPeer();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            connection.onPacket(router, packet, now);
+        } catch (IOException | RuntimeException e) {
+            // A failing request must not take the event loop and every other client down with it
+            server.getStats().onClosedOnError();
+            connection.close();
+        }
+        reschedule(connection);
+    }
+
+    /**
+     * Hands the responses the workers finished to their connections.
+     */
+    private void completeRequests(long now) {
+        RequestExecutor.Completion completion;
+        while ((completion = requests.poll()) != null) {
+            ServerConnection connection = completion.connection;
+            try {
+                connection.onResponse(completion.response, now);
+            } catch (IOException | RuntimeException e) {
+                server.getStats().onClosedOnError();
+                connection.close();
+            }
+            reschedule(connection);
+        }
+    }
+
+    /**
+     * Fires every timer that is due. Entries whose connection has been rescheduled since are skipped.
+     */
+    private void runTimers(long now) throws IOException {
+        while (!timers.isEmpty() && timers.peek().at <= now) {
+            Timer timer = timers.poll();
+            ServerConnection connection = timer.connection;
+            if (connection.getScheduledAt() != timer.at) {
+                continue;
+            }
+            connection.setScheduledAt(Long.MAX_VALUE);
+            try {
+                connection.onTimer(now);
+            } catch (IOException | RuntimeException e) {
+                server.getStats().onClosedOnError();
+                connection.close();
+            }
+            reschedule(connection);
+        }
+    }
+
+    /**
+     * Evicts the connection if it was closed while handling an event, otherwise queues its next deadline.
+     */
+    private void reschedule(ServerConnection connection) {
+        if (connection.isReleased()) {
+            evict(connection);
+        } else {
+            schedule(connection);
+        }
+    }
+
+    /**
+     * Closes the connection, cancels its queued timers and drops it from the table, so later
+     * packets of its client never reach its released buffers. A connection that was already
+     * replaced in the table by a newer one of the same client leaves that one alone.
+     */
+    private void evict(ServerConnection connection) {
+        connection.close();
+        // Queued Timer entries no longer match and are skipped
+        connection.setScheduledAt(Long.MAX_VALUE);
+        if (connections.get(connection.getPeerKey()) == connection) {
+            connections.remove(connection.getPeerKey());
+        }
+    }
+
+    /**
+     * Queues the connection's next deadline unless an earlier timer is already queued for it.
+     */
+    private void schedule(ServerConnection connection) {
+        long deadline = connection.nextDeadline();
+        if (deadline == Long.MAX_VALUE || deadline >= connection.getScheduledAt()) {
+            return;
+        }
+        connection.setScheduledAt(deadline);
+        timers.add(new Timer(deadline, connection));
+    }
+
+    private void evictConnections(long now) {
+        int slot = 0;
+        while (slot < connections.capacity()) {
+            ServerConnection connection = connections.valueAt(slot);
+            if (connection != null) {
+                long idle = now - connection.getLastActivity();
+                boolean finished = connection.getState() == ServerConnection.State.CLOSED && idle > UDPServer.CLOSED_LINGER;
+                boolean unused = connection.getState() == ServerConnection.State.IDLE && idle > UDPServer.KEEP_ALIVE_TIMEOUT;
+                if (finished || unused || idle > UDPServer.IDLE_TIMEOUT) {
+                    connection.close();
+                    if (connections.removeAt(slot)) {
+                        continue;
+                    }
+                }
+            }
+            slot++;
+        }
+    }
+
+    private void closeConnections() {
+        int slot = 0;
+        while (slot < connections.capacity()) {
+            ServerConnection connection = connections.valueAt(slot);
+            if (connection != null) {
+                connection.close();
+                if (connections.removeAt(slot)) {
+                    continue;
+                }
+            }
+            slot++;
+        }
+        timers.clear();
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        private final long at;
+        private final ServerConnection connection;
+
+        Timer(long at, ServerConnection connection) {
+            this.at = at;
+            this.connection = connection;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(at, other.at);
+        }
+    }
+}
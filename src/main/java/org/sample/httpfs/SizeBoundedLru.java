@@ -0,0 +1,74 @@
+package org.sample.httpfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * SizeBoundedLru is the map behind ResponseCache and ClientCache: it holds values up to a total
+ * size, as measured by sizeOf, and evicts the least recently used ones to stay within it.
+ * It is not synchronized; the caches lock around it.
+ */
+public class SizeBoundedLru<K, V> {
+
+    private final long maxBytes;
+    private final ToLongFunction<V> sizeOf;
+    // Access order turns iteration order into least recently used first
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long evictions;
+
+    public SizeBoundedLru(long maxBytes, ToLongFunction<V> sizeOf) {
+        this.maxBytes = maxBytes;
+        this.sizeOf = sizeOf;
+    }
+
+    /**
+     * Returns the value for key, or null if there is none, and marks it as most recently used.
+     */
+    public V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Stores value, replacing any previous one for key, then evicts until the total fits again.
+     */
+    public void put(K key, V value) {
+        V previous = entries.put(key, value);
+        if (previous != null) {
+            bytes -= sizeOf.applyAsLong(previous);
+        }
+        bytes += sizeOf.applyAsLong(value);
+        Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            bytes -= sizeOf.applyAsLong(eldest.next().getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the value for key. Returns false if there was none.
+     */
+    public boolean remove(K key) {
+        V value = entries.remove(key);
+        if (value == null) {
+            return false;
+        }
+        bytes -= sizeOf.applyAsLong(value);
+        return true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+}
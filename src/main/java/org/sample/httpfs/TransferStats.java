@@ -0,0 +1,309 @@
+package org.sample.httpfs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransferStats counts what SelectiveRepeatSenders put on the wire and what
+ * SelectiveRepeatReceivers take off it, and keeps histograms of RTT samples,
+ * handshake times and request latencies.
+ * One instance can be shared by every connection of a server, or of a group of clients,
+ * and read from other threads while they run, e.g. through JMX (see Metrics).
+ */
+public class TransferStats implements TransferStatsMBean {
+
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder fastRetransmits = new LongAdder();
+    private final LongAdder parityPacketsSent = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder duplicatePackets = new LongAdder();
+    private final LongAdder recoveredPackets = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder invalidPackets = new LongAdder();
+    private final LongAdder unknownPeerPackets = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder abandonedTransfers = new LongAdder();
+    private final LongAdder connectionsClosedOnError = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private final LatencyHistogram handshakeTime = new LatencyHistogram();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private volatile long resetAt = System.nanoTime();
+
+    void onSent(int length) {
+        packetsSent.increment();
+        bytesSent.add(length);
+    }
+
+    void onRetransmit(int length) {
+        onSent(length);
+        retransmissions.increment();
+    }
+
+    void onTimeout() {
+        timeouts.increment();
+    }
+
+    void onFastRetransmit() {
+        fastRetransmits.increment();
+    }
+
+    void onParitySent() {
+        parityPacketsSent.increment();
+    }
+
+    void onMessageSent() {
+        messagesSent.increment();
+    }
+
+    void onReceived(int length) {
+        packetsReceived.increment();
+        bytesReceived.add(length);
+    }
+
+    void onDuplicate() {
+        duplicatePackets.increment();
+    }
+
+    void onRecovered() {
+        recoveredPackets.increment();
+    }
+
+    void onMessageReceived() {
+        messagesReceived.increment();
+    }
+
+    void onInvalid() {
+        invalidPackets.increment();
+    }
+
+    void onUnknownPeer() {
+        unknownPeerPackets.increment();
+    }
+
+    void onAbandoned() {
+        abandonedTransfers.increment();
+    }
+
+    void onClosedOnError() {
+        connectionsClosedOnError.increment();
+    }
+
+    void onFailedRequest() {
+        failedRequests.increment();
+    }
+
+    /**
+     * DATA and FIN packets sent, retransmissions included.
+     */
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    /**
+     * Retransmission timeouts, counted once per backoff rather than per expired packet.
+     */
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Packets found lost from SelectiveAcks before their timer expired.
+     */
+    @Override
+    public long getFastRetransmits() {
+        return fastRetransmits.sum();
+    }
+
+    @Override
+    public long getParityPacketsSent() {
+        return parityPacketsSent.sum();
+    }
+
+    /**
+     * Messages whose sending was started.
+     */
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    /**
+     * Bytes of the DATA and FIN datagrams sent, headers and retransmissions included.
+     */
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * DATA, FIN and PARITY packets received, duplicates included.
+     */
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    /**
+     * Packets received again inside the window, i.e. retransmissions that were not needed.
+     */
+    @Override
+    public long getDuplicatePackets() {
+        return duplicatePackets.sum();
+    }
+
+    /**
+     * Packets rebuilt from parity instead of being retransmitted.
+     */
+    @Override
+    public long getRecoveredPackets() {
+        return recoveredPackets.sum();
+    }
+
+    /**
+     * Messages received in full, up to and including their FIN.
+     */
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    /**
+     * Packets of a type the connection does not expect, which were dropped.
+     */
+    @Override
+    public long getInvalidPackets() {
+        return invalidPackets.sum();
+    }
+
+    /**
+     * Packets dropped by a server because no connection of their client was open and they were no SYN.
+     */
+    @Override
+    public long getUnknownPeerPackets() {
+        return unknownPeerPackets.sum();
+    }
+
+    /**
+     * Payload bytes of the packets received.
+     */
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Messages a sender gave up on because a packet went unacknowledged for MAX_RETRIES retransmissions.
+     */
+    @Override
+    public long getAbandonedTransfers() {
+        return abandonedTransfers.sum();
+    }
+
+    /**
+     * Connections closed because handling one of their packets, timers or responses threw.
+     */
+    @Override
+    public long getConnectionsClosedOnError() {
+        return connectionsClosedOnError.sum();
+    }
+
+    /**
+     * Requests a server answered with 500 Internal Server Error, failed uploads included.
+     */
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    /**
+     * Share of sent packets that were retransmissions, 0 if nothing was sent.
+     */
+    @Override
+    public double getRetransmissionRatio() {
+        long sent = getPacketsSent();
+        return sent == 0 ? 0 : (double) getRetransmissions() / sent;
+    }
+
+    /**
+     * Average send rate since the stats were created or reset.
+     */
+    @Override
+    public double getBytesSentPerSecond() {
+        return getBytesSent() / secondsSinceReset();
+    }
+
+    @Override
+    public double getBytesReceivedPerSecond() {
+        return getBytesReceived() / secondsSinceReset();
+    }
+
+    private double secondsSinceReset() {
+        return Math.max(1, System.nanoTime() - resetAt) / 1e9;
+    }
+
+    /**
+     * RTT samples taken by the senders.
+     */
+    public LatencyHistogram getRtt() {
+        return rtt;
+    }
+
+    /**
+     * Time from the first SYN to the SYN-ACK that completed it, as seen by a client.
+     */
+    public LatencyHistogram getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * Time from a request's first packet to its complete response: on a client until the response
+     * is received, on a server until it is acknowledged.
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    @Override
+    public void reset() {
+        packetsSent.reset();
+        retransmissions.reset();
+        timeouts.reset();
+        fastRetransmits.reset();
+        parityPacketsSent.reset();
+        messagesSent.reset();
+        bytesSent.reset();
+        packetsReceived.reset();
+        duplicatePackets.reset();
+        recoveredPackets.reset();
+        messagesReceived.reset();
+        invalidPackets.reset();
+        unknownPeerPackets.reset();
+        bytesReceived.reset();
+        abandonedTransfers.reset();
+        connectionsClosedOnError.reset();
+        failedRequests.reset();
+        rtt.reset();
+        handshakeTime.reset();
+        requestLatency.reset();
+        resetAt = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TransferStats[sent=%d, retransmitted=%d, timeouts=%d, fastRetransmits=%d, parity=%d, received=%d, duplicates=%d, recovered=%d, invalid=%d, unknownPeer=%d, abandoned=%d, closedOnError=%d, failedRequests=%d]",
+                getPacketsSent(), getRetransmissions(), getTimeouts(), getFastRetransmits(), getParityPacketsSent(),
+                getPacketsReceived(), getDuplicatePackets(), getRecoveredPackets(), getInvalidPackets(), getUnknownPeerPackets(),
+                getAbandonedTransfers(), getConnectionsClosedOnError(), getFailedRequests());
+    }
+}
@@ -0,0 +1,49 @@
+package org.sample.httpfs;
+
+/**
+ * JMX view of a TransferStats. Its histograms are registered as LatencyHistogramMBeans of their own.
+ */
+public interface TransferStatsMBean {
+
+    long getPacketsSent();
+
+    long getRetransmissions();
+
+    long getTimeouts();
+
+    long getFastRetransmits();
+
+    long getParityPacketsSent();
+
+    long getMessagesSent();
+
+    long getBytesSent();
+
+    long getPacketsReceived();
+
+    long getDuplicatePackets();
+
+    long getRecoveredPackets();
+
+    long getMessagesReceived();
+
+    long getInvalidPackets();
+
+    long getUnknownPeerPackets();
+
+    long getBytesReceived();
+
+    long getAbandonedTransfers();
+
+    long getConnectionsClosedOnError();
+
+    long getFailedRequests();
+
+    double getRetransmissionRatio();
+
+    double getBytesSentPerSecond();
+
+    double getBytesReceivedPerSecond();
+
+    void reset();
+}
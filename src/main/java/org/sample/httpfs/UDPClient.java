@@ -2,149 +2,446 @@ package org.sample.httpfs;
 
 import java.net.SocketAddress;
 import java.nio.channels.DatagramChannel;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.nio.channels.Selector;
+import java.util.concurrent.ThreadLocalRandom;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.IOException;
+import java.net.BindException;
+import java.net.StandardSocketOptions;
 import java.net.InetSocketAddress;
 
+/**
+ * UDPClient runs request/response exchanges with the server over one client port.
+ * exchange() is a single request after its own handshake. A keep-alive connection, as handed
+ * out by ConnectionPool, instead carries any number of requests after one handshake: each
+ * request is numbered right after the previous response's FIN.
+ */
 public class UDPClient { 
 
-    private static final int MAX_LEN = Packet.MAX_LEN;
-    private static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
-    private static final String FIN = "FIN";
+    /**
+     * How long an idle keep-alive connection may be reused; shorter than UDPServer.KEEP_ALIVE_TIMEOUT.
+     */
+    static final long IDLE_TIMEOUT = 5000;
+    // Room for a full window of PREFERRED_PAYLOAD_LEN packets, which the default buffer is not
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    private static TransferStats sharedStats;
     private InetSocketAddress clientAddr;
     private InetSocketAddress serverAddr;
     private InetSocketAddress routerAddr;
-    private HashMap<Long, Packet> packetsToBeSent;
-    private HashMap<Long, Packet> packetsToBeReceived;
-    private boolean done = false;
+    private SelectiveRepeatSender sender;
+    private SelectiveRepeatReceiver receiver;
+    private final RttEstimator rtt = new RttEstimator();
+    private CongestionControl congestionControl = new NewRenoCongestionControl(SelectiveRepeatSender.DEFAULT_WINDOW_SIZE);
+    private final int connectionId = ThreadLocalRandom.current().nextInt();
+    private DatagramChannel channel;
+    private boolean broken = false;
+    private long nextSequenceNumber = ClientHandshake.FIRST_DATA_SEQUENCE;
+    private long lastUsed;
+    private int maxPayload = Packet.PREFERRED_PAYLOAD_LEN;
+    private int parityGroupSize = 0;
+    private long timeout = AsyncUDPClient.DEFAULT_TIMEOUT;
+    private ClientHandshake handshake;
+    private long recoveredPackets;
+    private TransferStats stats = sharedStats();
+    private ByteBuffer buf;
+    private final PacketView inbound = new PacketView();
+    private Selector selector;
     public UDPClient(InetSocketAddress serverAddr, InetSocketAddress routerAddr, InetSocketAddress clientAddr) {
         this.serverAddr = serverAddr;
         this.routerAddr = routerAddr;
         this.clientAddr = clientAddr;
-        packetsToBeSent = new HashMap<>();
-        packetsToBeReceived = new HashMap<>();
     }
 
     public void startClient(byte[] data) throws IOException {
         try (DatagramChannel channel = DatagramChannel.open()) {
             channel.bind(clientAddr);
-            ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(BYTE_ORDER);
-            performHandshake(channel, serverAddr, routerAddr, buf);
-            packetsToBeSent = Packet.splitMessage(data, routerAddr, serverAddr, 2);
-            sendAndReceive(packetsToBeReceived, channel, routerAddr, serverAddr, buf);
+            String responseMessage = exchange(channel, data);
+            JavaFXApp.showResponse(responseMessage);
+            linger(channel);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            closeSelector();
         }
     }
 
-    private void performHandshake(DatagramChannel channel, InetSocketAddress server, InetSocketAddress router, ByteBuffer buf) throws IOException {
-        Packet synPacket = new Packet.Builder()
-            .setType(Packet.PacketType.SYN)
-            .setSequenceNumber(0)
-            .setPortNumber(server.getPort())
-            .setPeerAddress(server.getAddress())
-            .setPayload("synPacket".getBytes())
-            .create();
+    String exchange(DatagramChannel channel, byte[] data) throws IOException {
+        connect(channel, false);
+        return request(data);
+    }
 
-        sendPacketWithRetry(channel, router, synPacket);
+    /**
+     * Opens a keep-alive connection on its own channel, bound to the client address
+     * or to any free port if that one is taken.
+     */
+    static UDPClient open(InetSocketAddress serverAddr, InetSocketAddress routerAddr, InetSocketAddress clientAddr) throws IOException {
+        return open(serverAddr, routerAddr, clientAddr, 0);
     }
 
-    private void sendAndReceive(HashMap<Long, Packet> packets, DatagramChannel channel, InetSocketAddress routerAddr, InetSocketAddress serverAddr, ByteBuffer buf) throws IOException { 
-        Iterator<Entry<Long, Packet>> iterator = packetsToBeSent.entrySet().iterator();
- 
+    /**
+     * Same as open(serverAddr, routerAddr, clientAddr), asking for parity with the given group size unless it is 0.
+     */
+    static UDPClient open(InetSocketAddress serverAddr, InetSocketAddress routerAddr, InetSocketAddress clientAddr,
+                          int parityGroupSize) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            try {
+                channel.bind(clientAddr);
+            } catch (BindException e) {
+                channel.bind(new InetSocketAddress(clientAddr.getAddress(), 0));
+            }
+            UDPClient client = new UDPClient(serverAddr, routerAddr, clientAddr);
+            client.setParityGroupSize(parityGroupSize);
+            client.connect(channel, true);
+            return client;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
 
-        while (iterator.hasNext() || !done) {
-            buf.clear();
-            if (iterator.hasNext()) {
-                Packet dataPacket = iterator.next().getValue();
-                sendPacketWithRetry(channel, routerAddr, dataPacket);
-                continue;
+    /**
+     * Runs the handshake on the channel. With keepAlive the server is asked to keep the
+     * connection for further requests; isPersistent() tells whether it agreed.
+     */
+    void connect(DatagramChannel channel, boolean keepAlive) throws IOException {
+        this.channel = channel;
+        register(channel);
+        long start = System.nanoTime();
+        performHandshake(channel, serverAddr, routerAddr, keepAlive);
+        stats.getHandshakeTime().record(System.nanoTime() - start);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends one request on the connection and returns the response.
+     */
+    String request(byte[] data) throws IOException {
+        transfer(data);
+        return buildResponseMessage();
+    }
+
+    /**
+     * Same as request(data), with the response parsed; a response without a status line fails.
+     */
+    Response fetch(byte[] data) throws IOException {
+        transfer(data);
+        try {
+            return Response.parse(receiver.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed response: " + e.getMessage());
+        }
+    }
+
+    private void transfer(byte[] data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            acknowledgeLateResponses();
+            sendAndReceive(channel, routerAddr, serverAddr, data);
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+        stats.getRequestLatency().record(System.nanoTime() - start);
+        nextSequenceNumber = receiver.getNextExpected();
+        recoveredPackets += receiver.getRecoveredPackets();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if the connection may carry another request at time now.
+     */
+    boolean isReusable(long now) {
+        return isPersistent() && !broken && channel.isOpen() && now - lastUsed < IDLE_TIMEOUT;
+    }
+
+    boolean isPersistent() {
+        return handshake != null && handshake.isPersistent();
+    }
+
+    /**
+     * Sets the largest DATA payload proposed in the next handshake.
+     */
+    public void setMaxPayload(int maxPayload) {
+        this.maxPayload = Math.max(1, Math.min(maxPayload, Packet.MAX_PAYLOAD_LEN));
+    }
+
+    /**
+     * Sets how long a request may take until its response is complete, in milliseconds;
+     * AsyncUDPClient.DEFAULT_TIMEOUT by default.
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeout = timeoutMillis;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Asks the server in the next handshake for a PARITY packet after every groupSize DATA packets,
+     * in both directions; 0, the default, sends no parity.
+     */
+    public void setParityGroupSize(int groupSize) {
+        this.parityGroupSize = Math.max(0, Math.min(groupSize, ParityEncoder.MAX_GROUP_SIZE));
+    }
+
+    /**
+     * Parity group size agreed on with the server, 0 if parity is off.
+     */
+    public int getNegotiatedParityGroupSize() {
+        return handshake == null ? 0 : handshake.getNegotiatedParityGroupSize();
+    }
+
+    /**
+     * Number of response packets rebuilt from parity instead of being retransmitted, over all requests.
+     */
+    public long getRecoveredPackets() {
+        return recoveredPackets;
+    }
+
+    /**
+     * Stats every client counts into unless given its own, registered with JMX as "type=UDPClient".
+     */
+    public static synchronized TransferStats sharedStats() {
+        if (sharedStats == null) {
+            sharedStats = new TransferStats();
+            Metrics.registerStats("type=UDPClient", sharedStats);
+        }
+        return sharedStats;
+    }
+
+    /**
+     * Counts the packets, handshakes and requests of this client into stats instead of sharedStats(),
+     * e.g. one instance for a group of clients.
+     */
+    public void setStats(TransferStats stats) {
+        this.stats = stats;
+        if (sender != null) {
+            sender.setStats(stats);
+        }
+        if (receiver != null) {
+            receiver.setStats(stats);
+        }
+    }
+
+    public TransferStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the congestion control of the requests; takes effect for a connection that has not sent yet.
+     */
+    public void setCongestionControl(CongestionControl congestionControl) {
+        this.congestionControl = congestionControl;
+    }
+
+    public CongestionControl getCongestionControl() {
+        return congestionControl;
+    }
+
+    /**
+     * DATA payload size agreed on with the server.
+     */
+    public int getNegotiatedPayload() {
+        return handshake == null ? Packet.DEFAULT_PAYLOAD_LEN : handshake.getNegotiatedPayload();
+    }
+
+    /**
+     * Releases the pooled buffers and closes the channel of a connection made by open().
+     */
+    void close() {
+        try {
+            closeSelector();
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e);
+        }
+    }
+
+    /**
+     * Sends SYNs until the matching SYN-ACK arrives, waiting one retransmission timeout for each.
+     */
+    private void performHandshake(DatagramChannel channel, InetSocketAddress server, InetSocketAddress router, boolean keepAlive) throws IOException {
+        handshake = new ClientHandshake(connectionId, keepAlive, maxPayload, parityGroupSize);
+        while (handshake.getAttempts() < SelectiveRepeatSender.MAX_RETRIES) {
+            Packet synPacket = handshake.nextSyn(server);
+            if (handshake.fellBack()) {
+                System.out.println("No reply to " + maxPayload + " byte SYNs, falling back to " + handshake.getProposal() + " byte payloads");
             }
-            receivePacket(channel, buf);
-            Packet response = Packet.fromBuffer(buf);
-            if(response != null) {
-    	         handleResponse(response, packetsToBeReceived, channel, routerAddr, serverAddr);
+
+            long sentAt = System.currentTimeMillis();
+            PacketView response = sendAndAwaitReply(channel, router, synPacket);
+            if (response != null) {
+                if (handshake.getAttempts() == 1) {
+                    rtt.sample(System.currentTimeMillis() - sentAt);
+                    stats.getRtt().recordMillis(System.currentTimeMillis() - sentAt);
+                }
+                handshake.accept(response);
+                return;
             }
 
-          
+            rtt.backoff();
+            stats.onTimeout();
         }
 
-        String responseMessage = buildResponseMessage();
-        JavaFXApp.showResponse(responseMessage);
-        
-           }
+        throw new IOException("Max retries reached for packet 0");
+    }
+
+    /**
+     * Sends the SYN once and waits one retransmission timeout for its SYN-ACK.
+     */
+    private PacketView sendAndAwaitReply(DatagramChannel channel, InetSocketAddress router, Packet synPacket) throws IOException {
+        long deadline = System.currentTimeMillis() + rtt.getRto();
+        synPacket.sendPacket(channel, router);
+        PacketView response = receivePacket(channel, rtt.getRto());
+        // Stray packets from an earlier exchange must not cut the timer short
+        while (response != null && !handshake.isReply(response)) {
+            response = receivePacket(channel, deadline - System.currentTimeMillis());
+        }
+        return response;
+    }
 
-    private void sendPacketWithRetry(DatagramChannel channel, InetSocketAddress router, Packet packet) throws IOException {
-        int retryCount = 0;
-        final int maxRetries = 9999999;
-        Packet response = null;
+    /**
+     * Handles what arrived while the connection sat idle: retransmissions of the previous response
+     * are acknowledged, so the server can finish it.
+     */
+    private void acknowledgeLateResponses() throws IOException {
+        if (receiver == null) {
+            return;
+        }
+        PacketView response;
+        while ((response = receivePacket(channel, 0)) != null) {
+            handleResponse(response, channel, routerAddr, serverAddr);
+        }
+    }
 
-        while (retryCount < maxRetries && (response == null || response.getSequenceNumber() != packet.getSequenceNumber() + 1)) {
-            packet.sendPacket(channel, router);
-            response = Packet.waitForResponse(channel);
+    private void sendAndReceive(DatagramChannel channel, InetSocketAddress routerAddr, InetSocketAddress serverAddr, byte[] data) throws IOException { 
+        if (sender == null) {
+            sender = handshake.newSender(channel, routerAddr, rtt, congestionControl, stats);
+        }
+        sender.send(MessageSource.of(data), nextSequenceNumber,
+                PacketView.toInt(serverAddr.getAddress()), serverAddr.getPort());
+        // The server numbers its response right after our FIN
+        if (receiver != null) {
+            receiver.close();
+        }
+        receiver = handshake.newReceiver(sender.getEndSequenceNumber(), stats);
 
-            if (response != null && response.getSequenceNumber() == packet.getSequenceNumber() + 1) {
-                break;
+        // Once the request is acknowledged only the server can make progress, so without a
+        // deadline a server that never answers would keep the client waiting for good
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!sender.isDone() || !receiver.isComplete()) {
+            if (sender.hasFailed()) {
+                throw new IOException("Server stopped acknowledging the request");
+            }
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                throw new IOException("No response within " + timeout + " ms");
+            }
+            sender.pump(now);
+            long wait = Math.min(sender.isDone() ? rtt.getRto() : sender.nextDeadline() - now, deadline - now);
+            PacketView response = receivePacket(channel, wait);
+            if (response != null) {
+                handleResponse(response, channel, routerAddr, serverAddr);
             }
-
-            retryCount++;
-            System.out.println("Retrying... Attempt " + retryCount + " for packet " + packet.getType());
         }
+    }
 
-        if (retryCount == maxRetries) {
-            System.out.println("Max retries reached for packet " + packet.getSequenceNumber());
-        } else if (response != null) {
-            handleResponse(response, packetsToBeReceived, channel, router, new InetSocketAddress(response.getPeerAddress(), response.getPeerPort()));
+    /**
+     * Keeps acknowledging retransmitted response packets until the server goes quiet,
+     * so a lost ACK for the final FIN does not leave the server retrying forever.
+     * The server may have backed off its own timer, so only a full RttEstimator.MAX_RTO
+     * of silence means it is done.
+     */
+    private void linger(DatagramChannel channel) throws IOException {
+        PacketView response;
+        while ((response = receivePacket(channel, RttEstimator.MAX_RTO)) != null) {
+            handleResponse(response, channel, routerAddr, serverAddr);
         }
     }
 
+    private void register(DatagramChannel channel) throws IOException {
+        if (selector == null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            selector = Selector.open();
+            channel.register(selector, OP_READ);
+            // Room for any datagram: one larger than negotiated is rejected, never silently truncated
+            buf = BufferPool.forLength(Packet.MAX_DATAGRAM_LEN).acquire();
+        }
+    }
 
-    private void receivePacket(DatagramChannel channel, ByteBuffer buf) throws IOException {
-        channel.receive(buf);
-        buf.flip();
+    /**
+     * Closes the Selector and returns the pooled buffers once the channel is done.
+     */
+    private void closeSelector() throws IOException {
+        if (selector != null) {
+            selector.close();
+            selector = null;
+            BufferPool.recycle(buf);
+            buf = null;
+            if (sender != null) {
+                sender.close();
+            }
+            if (receiver != null) {
+                receiver.close();
+            }
+        }
     }
 
-    private void handleResponse(Packet response, HashMap<Long, Packet> packets, DatagramChannel channel, InetSocketAddress routerAddr, InetSocketAddress serverAddr) throws IOException {
-        if(packetsToBeReceived.containsKey(response.getSequenceNumber())) {
-        	System.out.println("Packet already received");
+    /**
+     * Returns the next valid datagram as a view over the reused receive buffer,
+     * or null if nothing arrived within timeoutMillis.
+     */
+    private PacketView receivePacket(DatagramChannel channel, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            buf.clear();
+            if (channel.receive(buf) == null) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0 || selector.select(timeout) == 0) {
+                    return null;
+                }
+                selector.selectedKeys().clear();
+                continue;
+            }
+            buf.flip();
+            if (inbound.wrap(buf).isValid()) {
+                return inbound;
+            }
         }
+    }
+
+    private void handleResponse(PacketView response, DatagramChannel channel, InetSocketAddress routerAddr, InetSocketAddress serverAddr) throws IOException {
     	if (response.getType() == Packet.PacketType.ACK) {
-            return;
-        } else if (response.getType() == Packet.PacketType.DATA) {
-            packets.put(response.getSequenceNumber(), response);
-            long sequenceNumber = response.getSequenceNumber() + 1;
-            Packet ackPacket = new Packet.Builder()
-                .setType(Packet.PacketType.ACK)
-                .setSequenceNumber(sequenceNumber)
-                .setPortNumber(serverAddr.getPort())
-                .setPeerAddress(serverAddr.getAddress())
-                .setPayload("ACK".getBytes())
-                .create();
-            sendPacketWithRetry(channel, routerAddr, ackPacket);
-		} else if (response.getType() == Packet.PacketType.FIN) {
-			packets.put(response.getSequenceNumber(), response);
-			System.out.println("Received FIN packet");
-			done = true;
-			return;
-		} else if (response.getType() == Packet.PacketType.SYNACK ) {
-            return;
-        }
+            sender.onAck(response, System.currentTimeMillis());
+        } else if (response.getType() == Packet.PacketType.DATA || response.getType() == Packet.PacketType.FIN
+                || response.getType() == Packet.PacketType.PARITY) {
+            // The server only answers a complete request, so this covers ACKs that were lost.
+            // Late packets of the previous response on a keep-alive connection prove nothing.
+            if (response.getSequenceNumber() >= sender.getEndSequenceNumber()) {
+                sender.acknowledgeAll();
+            }
+            if (receiver.accept(response)) {
+                receiver.sendAck(channel, routerAddr, response);
+            }
+		}
     }
 
     private String buildResponseMessage() {
+        return format(receiver.getMessage());
+    }
+
+    /**
+     * Formats a response message the way request() returns it.
+     */
+    static String format(ByteBuffer message) {
         StringBuilder responseBuilder = new StringBuilder();
         responseBuilder.append("Response from server: \n");
-        for (Packet packet : packetsToBeReceived.values()) {
-            String payload = new String(packet.getPayload(), UTF_8);
-            if (!payload.contains(FIN)) {
-                responseBuilder.append(payload);
-            }
-        }
+        responseBuilder.append(UTF_8.decode(message));
         responseBuilder.append("\n");
         return responseBuilder.toString();
     }
@@ -1,175 +1,231 @@
 package org.sample.httpfs;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.net.StandardSocketOptions;
 import java.nio.channels.DatagramChannel;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map.Entry;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * UDPServer runs one or more ServerEventLoops, each owning a Selector and the connections pinned to it.
+ * Every datagram is dispatched to the state machine of its connection and
+ * retransmission deadlines are served from the same loop, so no packet blocks the others.
+ * Connections are keyed by client endpoint, so any number of clients can be served at once.
+ * There is a single channel, read by the first loop. All client traffic comes from the one
+ * address of the router, so binding more sockets with SO_REUSEPORT would not spread it: the
+ * kernel hashes the 4-tuple and sends every datagram to the same socket. With several loops the
+ * first one hands each datagram to the loop its client endpoint hashes to, which runs that
+ * connection's state machine, timers and sends on the shared channel. httpfs is shared by all
+ * loops and answers requests on the workers of a RequestExecutor, never on an event loop.
+ */
 public class UDPServer {
 
-    private static final int MAX_LEN = Packet.MAX_LEN;
-    private static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
-    private static final String FIN = "FIN";
-    private static final String SYN_ACK_PAYLOAD = "SYN-ACK";
-    private static final String ACK_PAYLOAD = "ACK";
-    private HashMap<Long, Packet> packets = new HashMap<>();
-    private HashMap<Long, Packet> packetsToBeSent = new HashMap<>();
-    private ByteBuffer buffer =   ByteBuffer.allocate(MAX_LEN).order(BYTE_ORDER);
-    private Packet lastSentPacket = null;
+    // Closed connections stay around long enough to absorb late duplicates of the request instead of a SYN opening them anew
+    static final long CLOSED_LINGER = 2 * RttEstimator.MAX_RTO;
+    static final long IDLE_TIMEOUT = 30000;
+    // Longer than UDPClient.IDLE_TIMEOUT, so a client never reuses a connection that was already dropped here
+    static final long KEEP_ALIVE_TIMEOUT = 15000;
+    static final long EVICTION_INTERVAL = 1000;
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_WORKER_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private final TransferStats stats = new TransferStats();
+    private RequestExecutor requests;
+    private volatile boolean stopped = false;
+    private volatile ServerEventLoop[] loops = new ServerEventLoop[0];
+    private int eventLoops = 1;
     private httpfs fileServer;
     private int port;
-    protected static boolean fin = false;
+    private int maxPayload = Packet.PREFERRED_PAYLOAD_LEN;
+    private int maxParityGroupSize = ParityEncoder.MAX_GROUP_SIZE;
+    private Supplier<CongestionControl> congestionControl =
+            () -> new NewRenoCongestionControl(SelectiveRepeatSender.DEFAULT_WINDOW_SIZE);
 	public UDPServer(httpfs fileServer, int port) {
 		this.fileServer = fileServer;
 		this.port = port;
-		
+
 	}
-    
+
     public void serve() {
-        try (DatagramChannel channel = DatagramChannel.open()) {
-            InetSocketAddress serverAddress = new InetSocketAddress("localhost", port);
-            channel.bind(serverAddress);
-           
-            listenForPackets(channel, buffer);
+        DatagramChannel channel = null;
+        List<Thread> threads = new ArrayList<>();
+        try {
+            if (requests == null) {
+                requests = new RequestExecutor(RequestExecutor.defaultExecutor(DEFAULT_WORKER_THREADS),
+                        RequestExecutor.DEFAULT_MAX_PENDING);
+            }
+            channel = openChannel();
+            ServerEventLoop[] loops = new ServerEventLoop[eventLoops];
+            for (int i = 0; i < loops.length; i++) {
+                // The first loop reads and hands datagrams over, the others only send on the channel
+                loops[i] = new ServerEventLoop(this, i, channel, i == 0);
+            }
+            for (ServerEventLoop loop : loops) {
+                loop.setLoops(loops);
+            }
+            this.loops = loops;
+            Metrics.registerStats(metricsName(), stats);
+            Metrics.register(metricsName() + ",name=requests", requests);
+            Metrics.register(metricsName() + ",name=requestQueueWait", requests.getQueueWait());
+            Metrics.register(metricsName() + ",name=requestServiceTime", requests.getServiceTime());
+
+            for (int i = 1; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], "udp-server-loop-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+            loops[0].run();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            stop();
+            for (Thread thread : threads) {
+                joinUninterruptibly(thread);
+            }
+            Metrics.unregister(metricsName());
+            for (ServerEventLoop loop : loops) {
+                try {
+                    loop.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (requests != null) {
+                requests.shutdown();
+            }
         }
     }
 
-    private void listenForPackets(DatagramChannel channel, ByteBuffer buffer) throws IOException {
-        while (true) {
-            buffer.clear();
-            SocketAddress router = channel.receive(buffer);
-            if (router == null) continue;
-
-            buffer.flip();
-            Packet packet = Packet.fromBuffer(buffer);
-
-            if (packets.containsKey(packet.getSequenceNumber())) {
-                System.out.println("Already received packet, ignoring packet: " + packet.getSequenceNumber());
-                continue;
-            }
-
-            InetSocketAddress clientAddress = new InetSocketAddress(packet.getPeerAddress(), packet.getPeerPort());
-            handlePacket(channel, router, packet, clientAddress);
+    private DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress("localhost", port));
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
     }
 
-    private void handlePacket(DatagramChannel channel, SocketAddress router, Packet packet, InetSocketAddress client) throws IOException {
-    	switch (packet.getType()) {
-            case SYN:
-                handleSynPacket(channel, router, packet);
-                break;
-            case ACK:
-                handleAckPacket(packet);
-                break;
-            case DATA:
-                handleDataPacket(channel, router, packet, client);
-                break;
-            case FIN:
-                handleFinPacket(channel, router, packet, client);
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
                 break;
-            default:
-                System.out.println("Invalid packet type");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private void handleSynPacket(DatagramChannel channel, SocketAddress router, Packet packet) throws IOException {
-        packets.put(packet.getSequenceNumber(), packet);
+    /**
+     * Makes serve() return after the current event loop turn; may be called from any thread.
+     */
+    public void stop() {
+        stopped = true;
+        for (ServerEventLoop loop : loops) {
+            loop.wakeUp();
+        }
+    }
 
-        Packet response = new Packet.Builder()
-            .setType(Packet.PacketType.SYNACK)
-            .setSequenceNumber(packet.getSequenceNumber() + 1)
-            .setPeerAddress(packet.getPeerAddress())
-            .setPortNumber(packet.getPeerPort())
-            .setPayload(SYN_ACK_PAYLOAD.getBytes())
-            .create();
-        
-        sendPacketWithRetry(channel, router, response);
-        
+    boolean isStopped() {
+        return stopped;
     }
 
-    private void handleAckPacket(Packet packet) {
+    /**
+     * Sets how many event loops serve() runs, e.g. one per core; 1 by default.
+     */
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = Math.max(1, eventLoops);
     }
 
-    private void handleDataPacket(DatagramChannel channel, SocketAddress router, Packet packet, InetSocketAddress client) throws IOException {
-        packets.put(packet.getSequenceNumber(), packet);
-        
-        Packet ackPacket = new Packet.Builder()
-            .setType(Packet.PacketType.ACK)
-            .setSequenceNumber(packet.getSequenceNumber() + 1)
-            .setPeerAddress(packet.getPeerAddress())
-            .setPortNumber(packet.getPeerPort())
-            .setPayload(ACK_PAYLOAD.getBytes())
-            .create();
+    public int getEventLoops() {
+        return eventLoops;
+    }
 
-        sendPacketWithRetry(channel, router, ackPacket);
+    /**
+     * What all connections have sent and received so far; registered with JMX
+     * as "type=UDPServer,port=<port>" while the server runs.
+     */
+    public TransferStats getStats() {
+        return stats;
     }
 
-    private void handleFinPacket(DatagramChannel channel, SocketAddress router, Packet packet, InetSocketAddress client) throws IOException {
-    	System.out.println("Received FIN packet");
-    	packets.put(packet.getSequenceNumber(), packet);
-        
-        String request = formRequest(packets);
-        byte[] message = fileServer.run(request).getBytes();
+    private String metricsName() {
+        return "type=UDPServer,port=" + port;
+    }
 
-        packetsToBeSent = Packet.splitMessage(message, router, client, packet.getSequenceNumber() + 1);
-        sendPackets(channel, router, packetsToBeSent);
+    /**
+     * Runs requests on executor, with at most maxPending queued or running; the server shuts it
+     * down when serve() returns. By default a virtual thread per request where available,
+     * otherwise a pool of DEFAULT_WORKER_THREADS, with RequestExecutor.DEFAULT_MAX_PENDING.
+     */
+    public void setRequestExecutor(ExecutorService executor, int maxPending) {
+        this.requests = new RequestExecutor(executor, maxPending);
+    }
 
-        packetsToBeSent.clear();
-        packets.clear();
+    public RequestExecutor getRequestExecutor() {
+        return requests;
     }
 
-    private void sendPacketWithRetry(DatagramChannel channel, SocketAddress router, Packet packet) throws IOException {
-        int retryCount = 0;
-        final int maxRetries = 9999999;
-        Packet response = null;
+    /**
+     * Sets the largest DATA payload offered to clients in the handshake.
+     */
+    public void setMaxPayload(int maxPayload) {
+        this.maxPayload = Math.max(1, Math.min(maxPayload, Packet.MAX_PAYLOAD_LEN));
+    }
 
-        while ((retryCount < maxRetries) && (response == null || response.getSequenceNumber() != packet.getSequenceNumber() + 1)) {
-        	if(packet.getType() == Packet.PacketType.FIN) {
-        		fin = true;
-        	}
-            packet.sendPacket(channel, router);
-            response = Packet.waitForResponse(channel);
-            System.out.println(packet.getSequenceNumber() + " "  + Collections.max(packets.keySet()));
-            if ((response != null && response.getSequenceNumber() == packet.getSequenceNumber() + 1)) {
-                break;
-            }
+    /**
+     * Sets the largest parity group size agreed to when a client asks for parity; 0 refuses parity.
+     */
+    public void setMaxParityGroupSize(int maxParityGroupSize) {
+        this.maxParityGroupSize = Math.max(0, Math.min(maxParityGroupSize, ParityEncoder.MAX_GROUP_SIZE));
+    }
 
-            retryCount++;
-            System.out.println("Retrying... Attempt " + retryCount);
-        }
+    /**
+     * Sets how the congestion control of each new connection is created; NewReno by default.
+     */
+    public void setCongestionControl(Supplier<CongestionControl> congestionControl) {
+        this.congestionControl = congestionControl;
+    }
 
-        if (retryCount == maxRetries) {
-            System.out.println("Max retries reached. Giving up on packet " + packet.getSequenceNumber());
-        } else if (response != null) {
-            handlePacket(channel, router, response, new InetSocketAddress(response.getPeerAddress(), response.getPeerPort()));
+    public int getConnectionCount() {
+        int count = 0;
+        for (ServerEventLoop loop : loops) {
+            count += loop.getConnectionCount();
         }
+        return count;
     }
 
+    httpfs getFileServer() {
+        return fileServer;
+    }
 
-    private void sendPackets(DatagramChannel channel, SocketAddress router, HashMap<Long, Packet> packetsToBeSent) throws IOException {
-        for (Entry<Long, Packet> entry : packetsToBeSent.entrySet()) {
-            Packet dataPacket = entry.getValue();
-            sendPacketWithRetry(channel, router, dataPacket);
-           
-        }
+    int getMaxPayload() {
+        return maxPayload;
     }
-  
-    private String formRequest(HashMap<Long, Packet> packets) {
-        StringBuilder responseBuilder = new StringBuilder();
-        for (Entry<Long, Packet> entry : packets.entrySet()) {
-            if (entry.getValue().getType() == Packet.PacketType.FIN) continue;
-            responseBuilder.append(new String(entry.getValue().getPayload(), UTF_8));
-        }
-        return responseBuilder.toString();
+
+    int getMaxParityGroupSize() {
+        return maxParityGroupSize;
     }
 
-    
+    Supplier<CongestionControl> getCongestionControl() {
+        return congestionControl;
+    }
 }
@@ -40,40 +40,67 @@ public class httpc {
     
     private URI uri;
 
-	public httpc(String requestType,String data, String url) {
+    private final InetSocketAddress serverAddr;
+    private final InetSocketAddress routerAddr;
+    private final InetSocketAddress clientAddr;
+
+	public httpc(String requestType, String data, String url,
+	             InetSocketAddress serverAddr, InetSocketAddress routerAddr, InetSocketAddress clientAddr) {
 		this.requestType = requestType;
 		this.data = data;
 		this.url = url;
+		this.serverAddr = serverAddr;
+		this.routerAddr = routerAddr;
+		this.clientAddr = clientAddr;
 	}
 	
 
    
-    public void sendRequest() {
+    /**
+     * Sends the request and returns the response, or null if it could not be sent.
+     */
+    public String sendRequest() {
         try {
            uri = new URI(url);
             if (requestType.equalsIgnoreCase("get")) {
-                sendGetRequest(uri);
+                return sendGetRequest(uri);
             } else if (requestType.equalsIgnoreCase("post")) {
               
-                sendPostRequest(uri);
+                return sendPostRequest(uri);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return null;
     }
 
-    private void sendGetRequest(URI uri) throws IOException {
-        buildGetRequest(uri);
-        sendUdpRequest();
+    /**
+     * A file fetched before is only revalidated: the server answers 304 if it did not change,
+     * and the response comes from the ClientCache.
+     */
+    private String sendGetRequest(URI uri) throws IOException {
+        String key = ClientCache.key(serverAddr, target(uri));
+        ClientCache.Entry cached = ClientCache.shared().get(key);
+        buildGetRequest(uri, cached);
+        Response response = ConnectionPool.shared().fetch(serverAddr, routerAddr, clientAddr, request.getBytes());
+        return UDPClient.format(ClientCache.shared().update(key, cached, response).getMessage());
     }
 
-    private void sendPostRequest(URI uri) throws IOException {
+    private String sendPostRequest(URI uri) throws IOException {
         buildPostRequest(uri);
-        sendUdpRequest();
+        ClientCache.shared().invalidate(ClientCache.key(serverAddr, target(uri)));
+        return sendUdpRequest();
+    }
+
+    private static String target(URI uri) {
+        return uri.getPath() + (uri.getQuery() == null ? "" : "?" + uri.getQuery());
     }
 
-    private void buildGetRequest(URI uri) {
-        request = "GET " + uri.getPath() + (uri.getQuery() == null ? "" : "?" + uri.getQuery()) + " " + HTTP_VERSION + CRLF;
+    private void buildGetRequest(URI uri, ClientCache.Entry cached) {
+        request = "GET " + target(uri) + " " + HTTP_VERSION + CRLF;
+        if (cached != null) {
+            request += cached.conditionalHeaders();
+        }
         addDefaultHeaders(uri);
     }
 
@@ -83,7 +110,10 @@ public class httpc {
             headers.add("Content-length: " + data.length());
         }
         addDefaultHeaders(uri);
-        request += CRLF + data;
+        // addDefaultHeaders already ended the header block with an empty line
+        if (data != null) {
+            request += data;
+        }
     }
 
     private void addDefaultHeaders(URI uri) {
@@ -99,26 +129,29 @@ public class httpc {
         }
     }
 
-    private void sendUdpRequest() throws IOException {
-        InetSocketAddress SERVER = new InetSocketAddress("localhost", Integer.parseInt(JavaFXApp.serverPortField.getText()));
-        InetSocketAddress ROUTER = new InetSocketAddress("localhost", Integer.parseInt(JavaFXApp.routerPortField.getText()));
-        InetSocketAddress CLIENT = new InetSocketAddress("localhost", Integer.parseInt(JavaFXApp.clientPortField.getText()));
-
-        UDPClient client = new UDPClient(SERVER, ROUTER, CLIENT);
-        client.startClient(request.getBytes());
-        
-        
+    private String sendUdpRequest() throws IOException {
+        // Requests to the same server share a keep-alive connection instead of a handshake each
+        return ConnectionPool.shared().send(serverAddr, routerAddr, clientAddr, request.getBytes());
     }
 
  
+    /**
+     * Arguments: url, method, data, client port, server port and router port, all on localhost.
+     */
     public static void main(String[] args, JavaFXApp app) {
     	String url = args[0];
     	String requestType = args[1];
     	String data = args[2];
-    	httpc httpc = new httpc(requestType, data, url);
-    	httpc.sendRequest();
-    	
-    	
+    	InetSocketAddress client = new InetSocketAddress("localhost", Integer.parseInt(args[3]));
+    	InetSocketAddress server = new InetSocketAddress("localhost", Integer.parseInt(args[4]));
+    	InetSocketAddress router = new InetSocketAddress("localhost", Integer.parseInt(args[5]));
+    	httpc httpc = new httpc(requestType, data, url, server, router, client);
+    	String response = httpc.sendRequest();
+    	if (response != null && app != null) {
+    	    JavaFXApp.showResponse(response);
+    	} else if (response != null) {
+    	    System.out.println(response);
+    	}
     }
 
 }
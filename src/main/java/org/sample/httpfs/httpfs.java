@@ -1,129 +1,285 @@
 package org.sample.httpfs;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
+/**
+ * httpfs answers GET and POST requests from a directory. It keeps no per-request state,
+ * so the worker threads of a UDPServer may call it concurrently; the ResponseCache is synchronized.
+ * File responses carry Last-Modified and an ETag made of the file's size and modification time;
+ * a GET with If-None-Match or If-Modified-Since that still matches is answered with a bodiless
+ * 304 Not Modified. If-None-Match wins when both are given.
+ */
 public class httpfs {
+    private static final long CACHE_BYTES = 64L << 20;
+    // Larger files are streamed from disk rather than cached
+    private static final long MAX_CACHED_FILE = 1 << 20;
+
     private final String directory;
-    private final StringBuilder response;
-    private InputStream inputStreamReader;
-    private BufferedReader bufferedReader;
-    private String file;
-    private java.util.Date date;
+    private final ResponseCache cache = new ResponseCache(CACHE_BYTES, MAX_CACHED_FILE);
 
     public httpfs(String directory, boolean verbose) {
         this.directory = directory;
-        this.response = new StringBuilder("");
     }
 
-    String run(String req) throws IOException {
-        this.date = new java.util.Date();
-        inputStreamReader = new ByteArrayInputStream(req.getBytes(Charset.forName("UTF-8")));
-        bufferedReader = new BufferedReader(new InputStreamReader(inputStreamReader));
+    /**
+     * Answers a request reassembled from DATA packets.
+     * File contents are not read here; the returned source streams them as the response is sent.
+     */
+    MessageSource respond(ByteBuffer req) throws IOException {
+        return respond(UTF_8.decode(req).toString());
+    }
+
+    /**
+     * Answers a request that a RequestSink took in; a POST body is already on disk and only committed here.
+     */
+    MessageSource respond(RequestSink request) throws IOException {
+        request.finishBody();
+        if (request.getErrorStatus() != null) {
+            return text(errorResponse(request.getErrorStatus()));
+        }
+        FileUpload upload = request.getUpload();
+        if (upload == null) {
+            return respond(request.getHead());
+        }
+        boolean replaced = upload.commit();
+        cache.invalidate(upload.getTarget());
+        if (replaced) {
+            return text(successResponse("200 OK", upload.getLength(), "File contents overwritten"));
+        }
+        return text(successResponse("201 Created", upload.getLength(), "New file created"));
+    }
+
+    /**
+     * Answer to a request the server has no capacity for right now.
+     */
+    MessageSource unavailable() {
+        return text(errorResponse("503 Service Unavailable"));
+    }
+
+    /**
+     * Answer to a request that httpfs failed on, so the client is not left waiting for one.
+     */
+    MessageSource internalError() {
+        return text(errorResponse("500 Internal Server Error"));
+    }
+
+    /**
+     * Returns where the body of a POST to fileName goes, or null if the path is not allowed.
+     * Touches no file, so the event loop may call it.
+     */
+    Path uploadTarget(String fileName) {
+        if (fileName.contains("..")) {
+            return null;
+        }
+        return resolve(fileName);
+    }
+
+    /**
+     * Answers a request head. Only GETs are answered here: a POST body is taken in by a
+     * RequestSink, so a POST that did not come through one is a 400 Bad Request.
+     */
+    MessageSource respond(String req) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(req.getBytes(Charset.forName("UTF-8")))));
         String line = bufferedReader.readLine();
         if (line != null) {
             if (line.contains("GET")) {
-                file = line.split(" ")[1];
-                return runGet(file);
-            } else if (line.contains("POST")) {
-                file = line.split(" ")[1];
-                StringBuilder payload = new StringBuilder();
-                while (bufferedReader.ready()) {
-                    payload.append((char) bufferedReader.read());
+                String file = line.split(" ")[1];
+                String ifNoneMatch = null;
+                String ifModifiedSince = null;
+                String header;
+                while ((header = bufferedReader.readLine()) != null && !header.isEmpty()) {
+                    int colon = header.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = header.substring(0, colon).trim();
+                    if (name.equalsIgnoreCase("If-None-Match")) {
+                        ifNoneMatch = header.substring(colon + 1).trim();
+                    } else if (name.equalsIgnoreCase("If-Modified-Since")) {
+                        ifModifiedSince = header.substring(colon + 1).trim();
+                    }
                 }
-                return runPost(file, payload.toString());
+                return runGet(file, ifNoneMatch, ifModifiedSince);
             }
         }
-        return errorResponse("400 Bad Request");
+        return text(errorResponse("400 Bad Request"));
     }
 
-    private String runGet(String fileName) throws IOException {
-        File file = new File(directory, fileName);
+    /**
+     * Returns the normalized path of a requested file, which is also its key in the cache.
+     */
+    private Path resolve(String fileName) {
+        return new File(directory, fileName).toPath().toAbsolutePath().normalize();
+    }
 
-        if (fileName.contains("..")) {
-            return errorResponse("403 Forbidden");
-        } else if (!file.exists()) {
-            return errorResponse("404 Not Found");
-        } else if (file.isDirectory()) {
-            return directoryListing(file);
-        } else {
-            return fileResponse(file);
-        }
+    ResponseCache getCache() {
+        return cache;
     }
 
-    private String runPost(String fileName, String data) throws IOException {
+    /**
+     * ifNoneMatch and ifModifiedSince are the values of the conditional headers, null if absent.
+     */
+    private MessageSource runGet(String fileName, String ifNoneMatch, String ifModifiedSince) throws IOException {
         File file = new File(directory, fileName);
 
         if (fileName.contains("..")) {
-            return errorResponse("403 Forbidden");
-        }
-
-        if (!file.exists()) {
-            Files.createDirectories(Paths.get(file.getParent()));
-            try (FileWriter writer = new FileWriter(file)) {
-                writer.write(data);
-            }
-            return successResponse("201 Created", data.length(), "New file created");
+            return text(errorResponse("403 Forbidden"));
+        } else if (!file.exists()) {
+            return text(errorResponse("404 Not Found"));
+        } else if (file.isDirectory()) {
+            return text(directoryListing(file));
         } else {
-            try (FileWriter writer = new FileWriter(file)) {
-                writer.write(data);
-            }
-            return successResponse("200 OK", data.length(), "File contents overwritten");
+            return fileResponse(file, ifNoneMatch, ifModifiedSince);
         }
     }
 
     private String directoryListing(File directory) {
+        File[] files = directory.listFiles();
+        StringBuilder response = new StringBuilder();
         response.append("200 OK\r\n")
-                .append("Content-Length: ").append(directory.listFiles().length)
-                .append("\r\nContent-Type: Directory\r\nDate: ").append(date)
+                .append("Content-Length: ").append(files.length)
+                .append("\r\nContent-Type: Directory\r\nDate: ").append(new java.util.Date())
                 .append("\r\n\r\n");
 
-        for (File file : directory.listFiles()) {
+        for (File file : files) {
             response.append(file.getName()).append("\n");
         }
         return response.toString();
     }
 
-    private String fileResponse(File file) throws IOException {
-        String fileType = Files.probeContentType(file.toPath());
-        fileType = (fileType == null) ? "Unknown" : fileType;
+    private MessageSource fileResponse(File file, String ifNoneMatch, String ifModifiedSince) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = etag(attributes.size(), lastModified);
+        String lastModifiedDate = httpDate(lastModified);
+
+        if (notModified(etag, lastModified, ifNoneMatch, ifModifiedSince)) {
+            // Neither the cache nor the file is touched: the client already has the body
+            return text(notModifiedResponse(etag, lastModifiedDate));
+        }
 
-        StringBuilder fileData = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                fileData.append(line).append("\n");
+        if (cache.accepts(attributes.size())) {
+            ResponseCache.Entry cached = cache.get(path, lastModified, attributes.size());
+            if (cached == null) {
+                // The file may have changed since its attributes were read, so the size is that of the bytes read
+                byte[] body = Files.readAllBytes(path);
+                cached = new ResponseCache.Entry(body, contentType(path), lastModified, body.length);
+                cache.put(path, cached);
             }
+            String header = successResponse("200 OK", cached.body.length, cached.contentType,
+                    etag(cached.body.length, lastModified), lastModifiedDate);
+            return MessageSource.of(header.getBytes(UTF_8), cached.body);
         }
 
-        return successResponse("200 OK", fileData.length(), fileData.toString(), fileType);
+        // Only the header is built in memory; the body is streamed from the file as is. The file is
+        // opened first so that Content-Length and the ETag describe the bytes that are actually sent
+        FileMessageSource source = new FileMessageSource(path);
+        try {
+            long size = source.getFileSize();
+            source.setHeader(successResponse("200 OK", size, contentType(path), etag(size, lastModified), lastModifiedDate).getBytes(UTF_8));
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+        return source;
+    }
+
+    static String etag(long size, long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Formats a time as an HTTP date, e.g. "Tue, 3 Jun 2008 11:05:30 GMT"; HTTP dates have whole seconds.
+     */
+    static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
     }
 
-    private String successResponse(String status, int contentLength, String message) {
-        response.setLength(0);
+    /**
+     * Returns true if the client's copy, named by the conditional headers of its GET, is still current.
+     * An unparseable If-Modified-Since is ignored, as if it was not sent.
+     */
+    static boolean notModified(String etag, long lastModified, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String contentType(Path path) throws IOException {
+        String fileType = Files.probeContentType(path);
+        return (fileType == null) ? "Unknown" : fileType;
+    }
+
+    private static MessageSource text(String response) {
+        return MessageSource.of(response.getBytes(UTF_8));
+    }
+
+    private String successResponse(String status, long contentLength, String message) {
+        StringBuilder response = new StringBuilder();
         response.append("HTTP/1.0 ").append(status)
                 .append("\r\nContent-Length: ").append(contentLength)
-                .append("\r\nDate: ").append(date)
+                .append("\r\nDate: ").append(new java.util.Date())
                 .append("\r\n\r\n").append(message);
         return response.toString();
     }
 
-    private String successResponse(String status, int contentLength, String message, String contentType) {
-        response.setLength(0);
+    private String successResponse(String status, long contentLength, String contentType, String etag, String lastModified) {
+        StringBuilder response = new StringBuilder();
         response.append("HTTP/1.0 ").append(status)
                 .append("\r\nContent-Length: ").append(contentLength)
                 .append("\r\nContent-Type: ").append(contentType)
-                .append("\r\nDate: ").append(date)
-                .append("\r\n\r\n").append(message);
+                .append("\r\nETag: ").append(etag)
+                .append("\r\nLast-Modified: ").append(lastModified)
+                .append("\r\nDate: ").append(new java.util.Date())
+                .append("\r\n\r\n");
+        return response.toString();
+    }
+
+    private String notModifiedResponse(String etag, String lastModified) {
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.0 304 Not Modified")
+                .append("\r\nETag: ").append(etag)
+                .append("\r\nLast-Modified: ").append(lastModified)
+                .append("\r\nDate: ").append(new java.util.Date())
+                .append("\r\n\r\n");
         return response.toString();
     }
 
     private String errorResponse(String status) {
-        response.setLength(0);
+        StringBuilder response = new StringBuilder();
         response.append("HTTP/1.0 ").append(status)
-                .append("\r\nDate: ").append(date)
+                .append("\r\nDate: ").append(new java.util.Date())
                 .append("\r\n\r\n");
         return response.toString();
     }
@@ -133,6 +289,9 @@ public class httpfs {
         String directory = args[1];
         httpfs server = new httpfs(directory, false);
         UDPServer udpServer = new UDPServer(server, port);
+        if (args.length > 2) {
+            udpServer.setEventLoops(Integer.parseInt(args[2]));
+        }
         udpServer.serve();
     }
 }
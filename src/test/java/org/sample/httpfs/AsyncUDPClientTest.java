@@ -0,0 +1,82 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for AsyncUDPClient.
+ */
+public class AsyncUDPClientTest 
+    extends TestCase
+{
+    private DatagramChannel silentRouter;
+    private AsyncUDPClient client;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        // Takes the SYNs and never answers
+        silentRouter = DatagramChannel.open().bind(new InetSocketAddress("localhost", 0));
+        InetSocketAddress router = (InetSocketAddress) silentRouter.getLocalAddress();
+        client = new AsyncUDPClient(new InetSocketAddress("localhost", router.getPort() + 1), router);
+        client.setStats(new TransferStats());
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        client.close();
+        silentRouter.close();
+    }
+
+    public void testRequestWithoutAnswerTimesOut() throws Exception
+    {
+        client.setTimeout(200);
+        CompletableFuture<Response> response = client.get("/a.txt");
+
+        try {
+            response.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, client.getPending());
+    }
+
+    public void testRejectsRequestsOverMaxPending() throws Exception
+    {
+        client.setMaxPending(1);
+        CompletableFuture<Response> first = client.get("/a.txt");
+        CompletableFuture<Response> second = client.get("/b.txt");
+
+        try {
+            second.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertFalse(first.isDone());
+    }
+
+    public void testCloseFailsPendingRequests() throws Exception
+    {
+        CompletableFuture<Response> response = client.get("/a.txt");
+        client.close();
+
+        try {
+            response.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(client.send(new byte[0]).isCompletedExceptionally());
+    }
+}
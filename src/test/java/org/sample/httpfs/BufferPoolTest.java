@@ -0,0 +1,50 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for BufferPool.
+ */
+public class BufferPoolTest 
+    extends TestCase
+{
+    public void testReleasedBufferIsReusedCleared()
+    {
+        BufferPool pool = new BufferPool(64, 4);
+        ByteBuffer first = pool.acquire();
+        assertTrue(first.isDirect());
+        first.putInt(42).flip();
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(64, second.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    public void testPoolIsBounded()
+    {
+        BufferPool pool = new BufferPool(64, 2);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        ByteBuffer c = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(1, pool.getDrops());
+    }
+
+    public void testForeignBuffersAreIgnored()
+    {
+        BufferPool pool = new BufferPool(64, 2);
+        pool.release(ByteBuffer.allocate(64));
+        pool.release(ByteBuffer.allocateDirect(32));
+        pool.release(null);
+        assertEquals(0, pool.getIdleCount());
+    }
+}
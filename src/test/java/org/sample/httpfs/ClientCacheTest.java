@@ -0,0 +1,64 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ClientCache.
+ */
+public class ClientCacheTest 
+    extends TestCase
+{
+    private static final Response OK = response("HTTP/1.0 200 OK\r\nETag: \"3-1\"\r\n\r\naaa");
+    private static final Response NOT_MODIFIED = response("HTTP/1.0 304 Not Modified\r\nETag: \"3-1\"\r\n\r\n");
+
+    public void testNotModifiedIsAnsweredFromCache()
+    {
+        ClientCache cache = new ClientCache(1000, 1000);
+        assertSame(OK, cache.update("a", null, OK));
+        ClientCache.Entry cached = cache.get("a");
+        assertEquals("If-None-Match: \"3-1\"\r\n", cached.conditionalHeaders());
+
+        assertSame(OK, cache.update("a", cached, NOT_MODIFIED));
+        assertEquals(1, cache.getRevalidations());
+        assertEquals(1, cache.getDownloads());
+    }
+
+    public void testResponsesWithoutValidatorsAreNotCached()
+    {
+        ClientCache cache = new ClientCache(1000, 1000);
+        cache.update("a", null, response("HTTP/1.0 200 OK\r\n\r\naaa"));
+        assertNull(cache.get("a"));
+    }
+
+    public void testErrorDropsEntry()
+    {
+        ClientCache cache = new ClientCache(1000, 1000);
+        cache.update("a", null, OK);
+        cache.update("a", cache.get("a"), response("HTTP/1.0 404 Not Found\r\n\r\n"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getBytes());
+    }
+
+    public void testLeastRecentlyUsedIsEvictedFirst()
+    {
+        int length = OK.getMessage().remaining();
+        ClientCache cache = new ClientCache(2 * length, length);
+        cache.update("a", null, OK);
+        cache.update("b", null, OK);
+        assertNotNull(cache.get("a"));
+        cache.update("c", null, OK);
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    private static Response response(String message)
+    {
+        return Response.parse(ByteBuffer.wrap(message.getBytes(UTF_8)));
+    }
+}
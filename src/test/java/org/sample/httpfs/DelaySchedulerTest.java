@@ -0,0 +1,54 @@
+package org.sample.httpfs;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for DelayScheduler.
+ */
+public class DelaySchedulerTest 
+    extends TestCase
+{
+    public void testDeliversInDeadlineOrder() throws InterruptedException
+    {
+        List<Integer> delivered = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        try (DelayScheduler<Integer> scheduler = new DelayScheduler<>("test", 10,
+                DelayScheduler.OverflowPolicy.DROP, i -> { delivered.add(i); done.countDown(); })) {
+            scheduler.schedule(3, 60);
+            scheduler.schedule(1, 0);
+            scheduler.schedule(2, 30);
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(1, 2, 3), delivered);
+            assertEquals(0, scheduler.size());
+        }
+    }
+
+    public void testDropPolicyRefusesWhenFull()
+    {
+        try (DelayScheduler<Integer> scheduler = new DelayScheduler<>("test", 2,
+                DelayScheduler.OverflowPolicy.DROP, i -> { })) {
+            assertTrue(scheduler.schedule(1, 10000));
+            assertTrue(scheduler.schedule(2, 10000));
+            assertFalse(scheduler.schedule(3, 10000));
+            assertEquals(2, scheduler.size());
+            assertEquals(1, scheduler.getOverflows());
+        }
+    }
+
+    public void testDeliverNowPolicyBypassesQueue()
+    {
+        List<Integer> delivered = new CopyOnWriteArrayList<>();
+        try (DelayScheduler<Integer> scheduler = new DelayScheduler<>("test", 1,
+                DelayScheduler.OverflowPolicy.DELIVER_NOW, delivered::add)) {
+            scheduler.schedule(1, 10000);
+            assertTrue(scheduler.schedule(2, 10000));
+            assertEquals(Arrays.asList(2), delivered);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for FileMessageSource.
+ */
+public class FileMessageSourceTest 
+    extends TestCase
+{
+    public void testHeaderIsFollowedByRawFileBytes() throws IOException
+    {
+        byte[] body = new byte[3000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        assertEquals(body, readAll(body));
+    }
+
+    public void testLargeFile() throws IOException
+    {
+        byte[] body = new byte[(1 << 20) + 123];
+        Arrays.fill(body, (byte) 0xff);
+        body[body.length - 1] = 7;
+        assertEquals(body, readAll(body));
+    }
+
+    public void testTruncatedFileReadsShort() throws IOException
+    {
+        Path path = Files.createTempFile("httpfs", ".bin");
+        try {
+            Files.write(path, new byte[2 << 20]);
+            try (FileMessageSource source = new FileMessageSource(path)) {
+                source.setHeader("HEAD".getBytes());
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(16);
+                }
+                // The sender turns a read that returns nothing into an IOException
+                ByteBuffer chunk = ByteBuffer.allocateDirect(1024);
+                assertEquals(0, source.read(chunk, source.length() - chunk.capacity()));
+                chunk.clear();
+                assertEquals(4 + 16, source.read(chunk, 0));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static void assertEquals(byte[] body, byte[] response)
+    {
+        assertEquals(4 + body.length, response.length);
+        assertEquals("HEAD", new String(response, 0, 4));
+        assertTrue(Arrays.equals(body, Arrays.copyOfRange(response, 4, response.length)));
+    }
+
+    private static byte[] readAll(byte[] body) throws IOException
+    {
+        Path path = Files.createTempFile("httpfs", ".bin");
+        try {
+            Files.write(path, body);
+            try (FileMessageSource source = new FileMessageSource("HEAD".getBytes(), path)) {
+                assertEquals(body.length, source.getFileSize());
+                ByteBuffer response = ByteBuffer.allocate((int) source.length());
+                // Read in packet-sized pieces, the way the sender does
+                while (response.hasRemaining()) {
+                    ByteBuffer chunk = response.duplicate();
+                    chunk.limit(Math.min(response.limit(), response.position() + 1024));
+                    response.position(response.position() + source.read(chunk, response.position()));
+                }
+                return response.array();
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
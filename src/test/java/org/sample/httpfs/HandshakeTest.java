@@ -0,0 +1,64 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Handshake.
+ */
+public class HandshakeTest 
+    extends TestCase
+{
+    public void testRoundTrip()
+    {
+        Handshake handshake = Handshake.fromBytes(new Handshake(42, Handshake.KEEP_ALIVE).toBytes());
+        assertEquals(42, handshake.getConnectionId());
+        assertTrue(handshake.isKeepAlive());
+    }
+
+    public void testOlderPayloads()
+    {
+        Handshake withoutVersion = Handshake.fromBuffer(ByteBuffer.allocate(8).putInt(0, 7));
+        assertEquals(0, withoutVersion.getConnectionId());
+        assertFalse(withoutVersion.isKeepAlive());
+        assertEquals(Packet.DEFAULT_PAYLOAD_LEN, withoutVersion.getMaxPayload());
+
+        assertEquals(0, Handshake.fromBytes(new byte[0]).getConnectionId());
+        assertEquals(0, Handshake.fromBytes(null).getConnectionId());
+    }
+
+    public void testOriginalClientSyn()
+    {
+        // Read as fields, these bytes would ask for keep-alive, 25451 byte payloads and groups of 101
+        Handshake handshake = Handshake.fromBytes("synPacket".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0, handshake.getConnectionId());
+        assertFalse(handshake.isKeepAlive());
+        assertEquals(Packet.DEFAULT_PAYLOAD_LEN, handshake.getMaxPayload());
+        assertEquals(0, handshake.getParityGroupSize());
+    }
+
+    public void testTruncatedPayload()
+    {
+        byte[] truncated = Arrays.copyOf(new Handshake(42, Handshake.KEEP_ALIVE, 8192, 8).toBytes(), Handshake.LENGTH - 1);
+        assertEquals(0, Handshake.fromBytes(truncated).getConnectionId());
+        assertEquals(0, Handshake.fromBytes(truncated).getParityGroupSize());
+    }
+
+    public void testParityGroupSize()
+    {
+        assertEquals(8, Handshake.fromBytes(new Handshake(42, 0, 8192, 8).toBytes(8192)).getParityGroupSize());
+        assertEquals(0, Handshake.fromBytes(new Handshake(42, 0, 8192).toBytes(8192)).getParityGroupSize());
+    }
+
+    public void testPaddedProbe()
+    {
+        byte[] probe = new Handshake(42, 0, 8192).toBytes(8192);
+        assertEquals(8192, probe.length);
+        assertEquals(8192, Handshake.fromBytes(probe).getMaxPayload());
+        assertEquals(Handshake.LENGTH, new Handshake(42, 0, 60000).toBytes().length);
+        assertEquals(60000, Handshake.fromBytes(new Handshake(42, 0, 60000).toBytes()).getMaxPayload());
+    }
+}
@@ -0,0 +1,45 @@
+package org.sample.httpfs;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for LatencyHistogram.
+ */
+public class LatencyHistogramTest 
+    extends TestCase
+{
+    public void testBucketsCoverEveryValueInOrder()
+    {
+        int previous = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int index = LatencyHistogram.index(micros);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(micros <= LatencyHistogram.upperBound(index));
+            previous = index;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    public void testPercentilesWithinBucketPrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.recordMillis(millis);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(1000.0, histogram.getMaxMillis(), 0.001);
+        assertEquals(500.0, histogram.getP50Millis(), 500 / 8.0);
+        assertEquals(990.0, histogram.getP99Millis(), 990 / 8.0);
+        assertTrue(histogram.getP999Millis() <= histogram.getMaxMillis());
+    }
+
+    public void testReset()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getP99Millis());
+    }
+}
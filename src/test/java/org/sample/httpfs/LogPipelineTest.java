@@ -0,0 +1,65 @@
+package org.sample.httpfs;
+
+import java.net.InetSocketAddress;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for LogPipeline.
+ */
+public class LogPipelineTest 
+    extends TestCase
+{
+    // Long enough that only the explicit flush() calls of a test drain the pipeline
+    private static final long NEVER = 60000;
+
+    public void testRecordsAreFormattedInOrder()
+    {
+        StringBuilder out = new StringBuilder();
+        try (LogPipeline log = new LogPipeline("test-log", 16, 1000, NEVER, out::append)) {
+            log.text("config");
+            log.packet("delayed", 7, new InetSocketAddress("127.0.0.1", 1), new InetSocketAddress("127.0.0.1", 2), 100, 3, 5);
+            log.packet("delivered", 8, new InetSocketAddress("127.0.0.1", 1), new InetSocketAddress("127.0.0.1", 2), 100, 2, -1);
+            assertEquals("", out.toString());
+            log.flush();
+        }
+        String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("config", lines[0]);
+        assertTrue(lines[1].startsWith("[queue=3] packet #7, "));
+        assertTrue(lines[1].endsWith("sz=100 is delayed for 5 ms"));
+        assertTrue(lines[2].endsWith("is delivered"));
+    }
+
+    public void testFullRingDropsAndReports()
+    {
+        StringBuilder out = new StringBuilder();
+        try (LogPipeline log = new LogPipeline("test-log", 4, 1000, NEVER, out::append)) {
+            for (int i = 0; i < 6; i++) {
+                log.text("line " + i);
+            }
+            log.flush();
+            log.text("after");
+            log.flush();
+        }
+        String text = out.toString();
+        assertTrue(text.contains("line 3\n"));
+        assertFalse(text.contains("line 4"));
+        assertTrue(text.contains("2 records over the queue capacity were dropped"));
+        assertTrue(text.endsWith("after\n"));
+    }
+
+    public void testRateLimitSuppresses()
+    {
+        StringBuilder out = new StringBuilder();
+        try (LogPipeline log = new LogPipeline("test-log", 1024, 100, NEVER, out::append)) {
+            for (int i = 0; i < 500; i++) {
+                log.text("line " + i);
+            }
+            log.flush();
+        }
+        String[] lines = out.toString().split("\n");
+        // 10 per 100 ms slice; a slice boundary during the loop lets at most one more slice through
+        assertTrue(lines.length <= 21);
+        assertTrue(lines[lines.length - 1].contains("over the rate limit"));
+    }
+}
@@ -0,0 +1,47 @@
+package org.sample.httpfs;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for LongHashMap.
+ */
+public class LongHashMapTest 
+    extends TestCase
+{
+    public void testPutGetRemoveAcrossResizes()
+    {
+        LongHashMap<String> map = new LongHashMap<>(4);
+        for (long key = 0; key < 1000; key++) {
+            assertNull(map.put(key * 65536 + 8007, "v" + key));
+        }
+        assertEquals(1000, map.size());
+        for (long key = 0; key < 1000; key += 2) {
+            assertEquals("v" + key, map.remove(key * 65536 + 8007));
+        }
+        assertEquals(500, map.size());
+        for (long key = 0; key < 1000; key++) {
+            String expected = key % 2 == 0 ? null : "v" + key;
+            assertEquals(expected, map.get(key * 65536 + 8007));
+        }
+    }
+
+    public void testRemoveAtDuringSlotIteration()
+    {
+        LongHashMap<Long> map = new LongHashMap<>(16);
+        for (long key = 0; key < 100; key++) {
+            map.put(key, key);
+        }
+        int slot = 0;
+        while (slot < map.capacity()) {
+            Long value = map.valueAt(slot);
+            if (value != null && value % 3 == 0 && map.removeAt(slot)) {
+                continue;
+            }
+            slot++;
+        }
+        assertEquals(66, map.size());
+        for (long key = 0; key < 100; key++) {
+            assertEquals(key % 3 != 0, map.get(key) != null);
+        }
+    }
+}
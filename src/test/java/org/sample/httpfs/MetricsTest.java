@@ -0,0 +1,41 @@
+package org.sample.httpfs;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Metrics.
+ */
+public class MetricsTest 
+    extends TestCase
+{
+    public void testStatsAreReadableThroughJmx() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        TransferStats stats = new TransferStats();
+        stats.onSent(100);
+        stats.onRetransmit(100);
+        stats.getRtt().recordMillis(20);
+        Metrics.registerStats("type=MetricsTest", stats);
+        try {
+            assertEquals(2L, server.getAttribute(new ObjectName(Metrics.DOMAIN + ":type=MetricsTest,name=transfer"), "PacketsSent"));
+            assertEquals(1L, server.getAttribute(new ObjectName(Metrics.DOMAIN + ":type=MetricsTest,name=rtt"), "Count"));
+        } finally {
+            Metrics.unregister("type=MetricsTest");
+        }
+        assertTrue(server.queryNames(new ObjectName(Metrics.DOMAIN + ":type=MetricsTest,*"), null).isEmpty());
+    }
+
+    public void testRouterStatsAreReadableThroughJmx() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Metrics.register("type=MetricsTest,port=1", Router.getStats());
+        try {
+            assertEquals(0, server.getAttribute(new ObjectName(Metrics.DOMAIN + ":type=MetricsTest,port=1"), "QueueDepth"));
+        } finally {
+            Metrics.unregister("type=MetricsTest,port=1");
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.sample.httpfs;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for NewRenoCongestionControl.
+ */
+public class NewRenoCongestionControlTest 
+    extends TestCase
+{
+    public void testSlowStartThenCongestionAvoidance()
+    {
+        NewRenoCongestionControl congestion = new NewRenoCongestionControl(64);
+        congestion.onTimeout(0, 16, 0);
+        assertEquals(1, congestion.getWindow());
+        assertEquals(8, congestion.getSlowStartThreshold());
+
+        // Slow start doubles the window every round trip up to ssthresh
+        congestion.onAck(1, 1, 0);
+        congestion.onAck(2, 3, 0);
+        congestion.onAck(4, 7, 0);
+        assertEquals(8, congestion.getWindow());
+
+        // Then one packet per window
+        congestion.onAck(8, 15, 0);
+        assertEquals(9, congestion.getWindow());
+    }
+
+    public void testLossHalvesOncePerWindow()
+    {
+        NewRenoCongestionControl congestion = new NewRenoCongestionControl(64);
+        congestion.onAck(12, 14, 0);
+        assertEquals(16, congestion.getWindow());
+
+        congestion.onLoss(30, 16, 0);
+        assertEquals(8, congestion.getWindow());
+        // A second hole of the same window does not cut again, nor does a partial ACK grow it
+        congestion.onLoss(30, 8, 0);
+        congestion.onAck(4, 20, 0);
+        assertEquals(8, congestion.getWindow());
+        assertEquals(1, congestion.getLossEvents());
+
+        congestion.onAck(10, 30, 0);
+        assertFalse(congestion.isInRecovery());
+        congestion.onLoss(40, 8, 0);
+        assertEquals(4, congestion.getWindow());
+    }
+
+    public void testWindowIsCapped()
+    {
+        NewRenoCongestionControl congestion = new NewRenoCongestionControl(6);
+        congestion.onAck(100, 100, 0);
+        assertEquals(6, congestion.getWindow());
+    }
+}
@@ -0,0 +1,85 @@
+package org.sample.httpfs;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for PacketView.
+ */
+public class PacketViewTest 
+    extends TestCase
+{
+    public void testViewReadsWhatPacketWrites() throws Exception
+    {
+        Packet packet = new Packet.Builder()
+                .setType(Packet.PacketType.DATA)
+                .setSequenceNumber(0xFFFFFFF0L)
+                .setPeerAddress(InetAddress.getByName("192.168.1.20"))
+                .setPortNumber(65000)
+                .setPayload("hello".getBytes())
+                .create();
+
+        PacketView view = new PacketView().wrap(packet.toBuffer());
+        assertTrue(view.isValid());
+        assertEquals(Packet.PacketType.DATA, view.getType());
+        assertEquals(0xFFFFFFF0L, view.getSequenceNumber());
+        assertEquals(0xC0A80114, view.getPeerAddress());
+        assertEquals(65000, view.getPeerPort());
+        assertEquals(5, view.getPayloadLength());
+
+        byte[] payload = new byte[8];
+        assertEquals(5, view.copyPayload(payload, 0));
+        assertEquals("hello", new String(payload, 0, 5));
+        assertEquals(5, view.payload().remaining());
+    }
+
+    public void testPutHeaderRoundTripsThroughFromBuffer() throws Exception
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
+        PacketView.putHeader(buf, Packet.PacketType.ACK, 7, 0x7F000001, 8007);
+        buf.put("ACK".getBytes());
+        buf.flip();
+
+        Packet packet = Packet.fromBuffer(buf);
+        assertEquals(Packet.PacketType.ACK, packet.getType());
+        assertEquals(7, packet.getSequenceNumber());
+        assertEquals(InetAddress.getByName("127.0.0.1"), packet.getPeerAddress());
+        assertEquals(8007, packet.getPeerPort());
+        assertEquals("ACK", new String(packet.getPayload()));
+    }
+
+    public void testXorPayloadReadsFromTheViewsOffset() throws Exception
+    {
+        byte[] datagram = new Packet.Builder()
+                .setType(Packet.PacketType.DATA)
+                .setSequenceNumber(3)
+                .setPeerAddress(InetAddress.getByName("127.0.0.1"))
+                .setPortNumber(8007)
+                .setPayload("0123456789abcdef!".getBytes())
+                .create()
+                .toBytes();
+        // The datagram sits behind other bytes, as in a shared receive buffer
+        ByteBuffer buf = ByteBuffer.allocate(datagram.length + 5);
+        buf.position(5);
+        buf.put(datagram);
+        buf.position(5);
+        PacketView view = new PacketView().wrap(buf);
+
+        ByteBuffer dst = ByteBuffer.allocate(20);
+        view.xorPayload(dst, 0, 2, 15);
+        assertEquals("23456789abcdef!", new String(dst.array(), 0, 15));
+        view.xorPayload(dst, 0, 2, 15);
+        assertEquals(0, dst.getLong(0));
+        assertEquals(5, buf.position());
+        assertEquals(0x3031, view.getPayloadShort(0));
+    }
+
+    public void testRejectsShortDatagram()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        assertFalse(new PacketView().wrap(buf).isValid());
+    }
+}
@@ -0,0 +1,98 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ParityDecoder, fed by the PARITY packets of a SelectiveRepeatSender.
+ */
+public class ParityDecoderTest 
+    extends TestCase
+{
+    public void testRebuildsOneLostPacketPerGroup() throws IOException
+    {
+        // 10 DATA packets in groups of 4, 4 and 2, the last one short, then the FIN
+        byte[] message = new byte[9 * 100 + 37];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) (i * 31 + 7);
+        }
+        List<ByteBuffer> packets = sendAll(message, 100, 4);
+        assertEquals(10 + 3 + 1, packets.size());
+
+        SelectiveRepeatReceiver receiver = new SelectiveRepeatReceiver(2, 64, 100, null);
+        receiver.enableParity(4);
+        PacketView view = new PacketView();
+        for (ByteBuffer packet : packets) {
+            long seq = view.wrap(packet).getSequenceNumber();
+            // Lose 3 (second of group one), 9 (first of group two) and 11 (the short last one)
+            if (view.getType() == Packet.PacketType.DATA && (seq == 3 || seq == 9 || seq == 11)) {
+                continue;
+            }
+            receiver.accept(view);
+        }
+
+        assertTrue(receiver.isComplete());
+        assertEquals(3, receiver.getRecoveredPackets());
+        ByteBuffer received = receiver.getMessage();
+        byte[] bytes = new byte[received.remaining()];
+        received.get(bytes);
+        assertTrue(Arrays.equals(message, bytes));
+        receiver.close();
+    }
+
+    public void testTwoLossesInOneGroupAreLeftToRetransmission() throws IOException
+    {
+        List<ByteBuffer> packets = sendAll(new byte[400], 100, 4);
+
+        SelectiveRepeatReceiver receiver = new SelectiveRepeatReceiver(2, 64, 100, null);
+        receiver.enableParity(4);
+        PacketView view = new PacketView();
+        for (ByteBuffer packet : packets) {
+            long seq = view.wrap(packet).getSequenceNumber();
+            if (view.getType() == Packet.PacketType.DATA && (seq == 2 || seq == 4)) {
+                continue;
+            }
+            receiver.accept(view);
+        }
+
+        assertFalse(receiver.isComplete());
+        assertEquals(0, receiver.getRecoveredPackets());
+        assertEquals(2, receiver.getNextExpected());
+        receiver.close();
+    }
+
+    /**
+     * Sends the whole message with parity and returns every datagram in the order it was sent.
+     */
+    private static List<ByteBuffer> sendAll(byte[] message, int maxPayload, int groupSize) throws IOException
+    {
+        List<ByteBuffer> packets = new ArrayList<>();
+        try (DatagramChannel channel = DatagramChannel.open();
+             DatagramChannel router = DatagramChannel.open()) {
+            router.bind(new InetSocketAddress("localhost", 0));
+
+            SelectiveRepeatSender sender = new SelectiveRepeatSender(channel, router.getLocalAddress(), 64, maxPayload,
+                    new RttEstimator(), new FixedWindowCongestionControl(64));
+            sender.enableParity(groupSize);
+            sender.send(MessageSource.of(message), 2, 0x7f000001, 8007);
+            sender.pump(0);
+
+            long expected = sender.getEndSequenceNumber() - 2 + sender.getParityPacketsSent();
+            for (long i = 0; i < expected; i++) {
+                ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+                router.receive(buf);
+                buf.flip();
+                packets.add(buf);
+            }
+            sender.close();
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,70 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ReassemblyBuffer.
+ */
+public class ReassemblyBufferTest 
+    extends TestCase
+{
+    public void testOutOfOrderPayloadsAreDeliveredInOrder()
+    {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(2, 4, 16);
+        assertEquals(ReassemblyBuffer.ACCEPTED, buffer.offer(4, "ef".getBytes(), false));
+        assertEquals(ReassemblyBuffer.ACCEPTED, buffer.offer(3, "cd".getBytes(), false));
+        assertEquals(2, buffer.getNextExpected());
+        assertEquals(ReassemblyBuffer.ACCEPTED, buffer.offer(5, "FIN".getBytes(), true));
+        assertFalse(buffer.isComplete());
+        assertEquals(ReassemblyBuffer.ACCEPTED, buffer.offer(2, "ab".getBytes(), false));
+
+        assertTrue(buffer.isComplete());
+        assertEquals(6, buffer.getNextExpected());
+        assertEquals("abcdef", toString(buffer.getMessage()));
+    }
+
+    public void testDuplicatesAndWindow()
+    {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 2, 16);
+        assertEquals(ReassemblyBuffer.ACCEPTED, buffer.offer(1, "b".getBytes(), false));
+        assertEquals(ReassemblyBuffer.DUPLICATE, buffer.offer(1, "b".getBytes(), false));
+        assertEquals(ReassemblyBuffer.OUT_OF_WINDOW, buffer.offer(2, "c".getBytes(), false));
+        assertEquals(ReassemblyBuffer.ACCEPTED, buffer.offer(0, "a".getBytes(), false));
+        assertEquals(ReassemblyBuffer.DUPLICATE, buffer.offer(0, "a".getBytes(), false));
+        assertEquals(ReassemblyBuffer.ACCEPTED, buffer.offer(2, "c".getBytes(), false));
+        assertEquals("abc", toString(buffer.getMessage()));
+    }
+
+    public void testMessageGrowsPastInitialCapacity()
+    {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 8, 1000);
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < 20; i++) {
+            buffer.offer(i, payload, false);
+        }
+        assertEquals(20000, buffer.getDeliveredBytes());
+        assertEquals(20000, buffer.getMessage().remaining());
+    }
+
+    public void testSelectiveAckBitmap()
+    {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(2, 16, 16);
+        buffer.offer(4, "c".getBytes(), false);
+        buffer.offer(6, "e".getBytes(), false);
+        assertEquals(2, buffer.getNextExpected());
+        assertEquals(0b1010L, buffer.getSelectiveAckBitmap());
+
+        buffer.offer(2, "a".getBytes(), false);
+        assertEquals(3, buffer.getNextExpected());
+        assertEquals(0b101L, buffer.getSelectiveAckBitmap());
+    }
+
+    private static String toString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,114 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RequestExecutor.
+ */
+public class RequestExecutorTest 
+    extends TestCase
+{
+    private Path directory;
+    private httpfs fileServer;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("httpfs");
+        Files.write(directory.resolve("a.txt"), "aaa".getBytes(UTF_8));
+        Files.write(directory.resolve("b.txt"), "bb".getBytes(UTF_8));
+        fileServer = new httpfs(directory.toString(), false);
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public void testConcurrentRequestsGetTheirOwnResponses() throws Exception
+    {
+        RequestExecutor executor = new RequestExecutor(Executors.newFixedThreadPool(4), 64);
+        int requests = 40;
+        CountDownLatch done = new CountDownLatch(requests);
+        RequestExecutor.Loop loop = executor.newLoop(done::countDown);
+        for (int i = 0; i < requests; i++) {
+            assertTrue(loop.submit(null, fileServer, request(i % 2 == 0 ? "GET /a.txt" : "GET /")));
+        }
+        done.await();
+        int files = 0;
+        int listings = 0;
+        RequestExecutor.Completion completion;
+        while ((completion = loop.poll()) != null) {
+            String response = toString(completion.response);
+            if (response.endsWith("aaa")) {
+                files++;
+            } else {
+                // The listing used to grow with every call, as it appended to a shared builder
+                assertTrue(response.startsWith("200 OK"));
+                assertEquals(1, response.split("a.txt").length - 1);
+                listings++;
+            }
+        }
+        assertEquals(20, files);
+        assertEquals(20, listings);
+        assertEquals(0, executor.getPending());
+        assertEquals(requests, executor.getCompleted());
+        assertEquals(requests, executor.getServiceTime().getCount());
+        executor.shutdown();
+    }
+
+    public void testRefusesBeyondMaxPending() throws Exception
+    {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        single.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        RequestExecutor executor = new RequestExecutor(single, 2);
+        CountDownLatch done = new CountDownLatch(2);
+        RequestExecutor.Loop loop = executor.newLoop(done::countDown);
+        assertTrue(loop.submit(null, fileServer, request("GET /a.txt")));
+        assertTrue(loop.submit(null, fileServer, request("GET /b.txt")));
+        assertFalse(loop.submit(null, fileServer, request("GET /a.txt")));
+        assertEquals(1, executor.getRejected());
+        release.countDown();
+        done.await();
+        assertNotNull(loop.poll());
+        assertTrue(loop.submit(null, fileServer, request("GET /a.txt")));
+        executor.shutdown();
+    }
+
+    private RequestSink request(String requestLine)
+    {
+        RequestSink request = new RequestSink(fileServer);
+        byte[] bytes = (requestLine + " HTTP/1.0\r\n\r\n").getBytes(UTF_8);
+        request.write(bytes, bytes.length);
+        return request;
+    }
+
+    private static String toString(MessageSource source) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate((int) source.length());
+        source.read(buf, 0);
+        return new String(buf.array(), UTF_8);
+    }
+}
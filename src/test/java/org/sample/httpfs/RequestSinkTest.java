@@ -0,0 +1,148 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RequestSink.
+ */
+public class RequestSinkTest 
+    extends TestCase
+{
+    private Path directory;
+    private httpfs fileServer;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("httpfs");
+        fileServer = new httpfs(directory.toString(), false);
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public void testPostBodyIsWrittenOnlyOnCommit() throws IOException
+    {
+        RequestSink request = new RequestSink(fileServer);
+        // The headers end in the middle of the first payload and the body spans several
+        write(request, "POST /dir/up.txt HTTP/1.0\r\nContent-length: 9\r\n\r\nabc");
+        write(request, "def");
+        write(request, "ghi");
+        Path target = directory.resolve("dir/up.txt");
+        assertFalse(Files.exists(target));
+        assertEquals(9, request.getUpload().getLength());
+
+        String response = toString(fileServer.respond(request));
+        assertTrue(response.startsWith("HTTP/1.0 201 Created"));
+        assertEquals("abcdefghi", new String(Files.readAllBytes(target), UTF_8));
+        try (Stream<Path> files = Files.list(target.getParent())) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    public void testHeaderSplitAcrossPayloads() throws IOException
+    {
+        RequestSink request = new RequestSink(fileServer);
+        write(request, "POST /up.txt HTTP/1.0\r\n\r");
+        assertNull(request.getUpload());
+        write(request, "\nbody");
+        assertEquals(4, request.getUpload().getLength());
+        request.close();
+    }
+
+    public void testAbandonedUploadIsDeleted() throws IOException
+    {
+        RequestSink request = new RequestSink(fileServer);
+        write(request, "POST /up.txt HTTP/1.0\r\n\r\npartial");
+        request.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    public void testForbiddenPath() throws IOException
+    {
+        RequestSink request = new RequestSink(fileServer);
+        write(request, "POST /../up.txt HTTP/1.0\r\n\r\nbody");
+        assertEquals("403 Forbidden", request.getErrorStatus());
+    }
+
+    public void testUploadIsWrittenOnTheWriter() throws IOException
+    {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        RequestSink request = new RequestSink(fileServer, tasks::add);
+        write(request, "POST /dir/up.txt HTTP/1.0\r\n\r\nabc");
+        write(request, "def");
+        // Nothing touched the disk on the delivering thread, and one task drains both chunks
+        assertFalse(Files.exists(directory.resolve("dir")));
+        assertNull(request.getUpload());
+        assertEquals(1, tasks.size());
+
+        tasks.poll().run();
+        assertEquals(6, request.getUpload().getLength());
+        write(request, "ghi");
+        String response = toString(fileServer.respond(request));
+        assertTrue(response.startsWith("HTTP/1.0 201 Created"));
+        assertEquals("abcdefghi", new String(Files.readAllBytes(directory.resolve("dir/up.txt")), UTF_8));
+    }
+
+    public void testSlowWriterHoldsBackTheBody() throws IOException
+    {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        RequestSink request = new RequestSink(fileServer, tasks::add);
+        write(request, "POST /up.txt HTTP/1.0\r\n\r\n");
+        byte[] chunk = new byte[8192];
+        for (int written = 0; written <= RequestSink.MAX_QUEUED_BYTES; written += chunk.length) {
+            assertFalse(request.isBacklogged());
+            request.write(chunk, chunk.length);
+        }
+        assertTrue(request.isBacklogged());
+
+        tasks.poll().run();
+        assertFalse(request.isBacklogged());
+        // The partial upload is deleted on the writer as well
+        request.close();
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    public void testOtherRequestsAreKeptWhole()
+    {
+        RequestSink request = new RequestSink(fileServer);
+        write(request, "GET /f.txt HTTP/1.0\r\n\r\n");
+        assertNull(request.getUpload());
+        assertEquals("GET /f.txt HTTP/1.0\r\n\r\n", UTF_8.decode(request.getHead()).toString());
+    }
+
+    private static void write(RequestSink request, String payload)
+    {
+        byte[] bytes = payload.getBytes(UTF_8);
+        request.write(bytes, bytes.length);
+    }
+
+    private static String toString(MessageSource source) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate((int) source.length());
+        source.read(buf, 0);
+        return new String(buf.array(), UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package org.sample.httpfs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ResponseCache.
+ */
+public class ResponseCacheTest 
+    extends TestCase
+{
+    private static final Path A = Paths.get("/a");
+    private static final Path B = Paths.get("/b");
+    private static final Path C = Paths.get("/c");
+
+    public void testLeastRecentlyUsedIsEvictedFirst()
+    {
+        ResponseCache cache = new ResponseCache(20, 10);
+        cache.put(A, entry(10, 1));
+        cache.put(B, entry(10, 1));
+        assertNotNull(cache.get(A, 1, 10));
+        cache.put(C, entry(10, 1));
+
+        assertNull(cache.get(B, 1, 10));
+        assertNotNull(cache.get(A, 1, 10));
+        assertNotNull(cache.get(C, 1, 10));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(20, cache.getBytes());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testChangedFileIsNotServed()
+    {
+        ResponseCache cache = new ResponseCache(100, 100);
+        cache.put(A, entry(10, 1));
+        assertNull(cache.get(A, 2, 10));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(0, cache.size());
+
+        cache.put(A, entry(10, 2));
+        assertNull(cache.get(A, 2, 11));
+        assertEquals(2, cache.getInvalidations());
+    }
+
+    public void testWritesInvalidate()
+    {
+        ResponseCache cache = new ResponseCache(100, 100);
+        cache.put(A, entry(10, 1));
+        cache.invalidate(A);
+        assertNull(cache.get(A, 1, 10));
+        assertEquals(0, cache.getBytes());
+    }
+
+    public void testLargeFilesAreNotCached()
+    {
+        ResponseCache cache = new ResponseCache(100, 10);
+        assertFalse(cache.accepts(11));
+        cache.put(A, entry(11, 1));
+        assertEquals(0, cache.size());
+    }
+
+    private static ResponseCache.Entry entry(int size, long lastModified)
+    {
+        return new ResponseCache.Entry(new byte[size], "text/plain", lastModified, size);
+    }
+}
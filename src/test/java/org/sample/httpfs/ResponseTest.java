@@ -0,0 +1,54 @@
+package org.sample.httpfs;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Response.
+ */
+public class ResponseTest 
+    extends TestCase
+{
+    public void testParsesStatusHeadersAndBody()
+    {
+        ByteBuffer message = ByteBuffer.wrap(
+                "HTTP/1.0 404 Not Found\r\nContent-Length: 5\r\nContent-Type: text/plain\r\n\r\nhello".getBytes(UTF_8));
+        Response response = Response.parse(message);
+
+        assertEquals(404, response.getStatus());
+        assertEquals("Not Found", response.getReason());
+        assertEquals("5", response.getHeader("content-length"));
+        assertEquals("text/plain", response.getHeader("Content-Type"));
+        assertEquals("hello", response.getBodyText());
+        assertEquals(0, message.position());
+    }
+
+    public void testStatusLineWithoutVersion()
+    {
+        Response response = Response.parse(ByteBuffer.wrap("200 OK\r\nContent-Type: Directory\r\n\r\na.txt\n".getBytes(UTF_8)));
+
+        assertEquals(200, response.getStatus());
+        assertEquals("OK", response.getReason());
+        assertEquals("a.txt\n", response.getBodyText());
+    }
+
+    public void testBodyIsReadableRepeatedly()
+    {
+        Response response = Response.parse(ByteBuffer.wrap("HTTP/1.0 200 OK\r\n\r\nabc".getBytes(UTF_8)));
+        response.getBody().get(new byte[3]);
+
+        assertEquals(3, response.getBody().remaining());
+    }
+
+    public void testRejectsMissingStatus()
+    {
+        try {
+            Response.parse(ByteBuffer.wrap("garbage\r\n\r\n".getBytes(UTF_8)));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
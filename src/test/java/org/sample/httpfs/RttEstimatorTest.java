@@ -0,0 +1,39 @@
+package org.sample.httpfs;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RttEstimator.
+ */
+public class RttEstimatorTest 
+    extends TestCase
+{
+    public void testFirstSampleSetsTimeout()
+    {
+        RttEstimator rtt = new RttEstimator(1000, 1, 60000);
+        rtt.sample(100);
+        assertEquals(100.0, rtt.getSrtt());
+        assertEquals(300, rtt.getRto());
+    }
+
+    public void testTimeoutIsClamped()
+    {
+        RttEstimator rtt = new RttEstimator(1000, 20, 4000);
+        rtt.sample(0);
+        assertEquals(20, rtt.getRto());
+        for (int i = 0; i < 10; i++) {
+            rtt.backoff();
+        }
+        assertEquals(4000, rtt.getRto());
+    }
+
+    public void testBackoffDoublesUntilNextSample()
+    {
+        RttEstimator rtt = new RttEstimator(1000, 1, 60000);
+        rtt.sample(100);
+        rtt.backoff();
+        assertEquals(600, rtt.getRto());
+        rtt.sample(100);
+        assertTrue(rtt.getRto() < 600);
+    }
+}
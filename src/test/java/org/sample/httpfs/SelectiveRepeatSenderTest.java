@@ -0,0 +1,111 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for SelectiveRepeatSender.
+ */
+public class SelectiveRepeatSenderTest 
+    extends TestCase
+{
+    public void testSelectiveAckClearsEverythingItReports() throws IOException
+    {
+        try (DatagramChannel channel = DatagramChannel.open();
+             DatagramChannel router = DatagramChannel.open()) {
+            router.bind(new InetSocketAddress("localhost", 0));
+            router.configureBlocking(false);
+
+            SelectiveRepeatSender sender = new SelectiveRepeatSender(channel, router.getLocalAddress(),
+                    Packet.DEFAULT_PAYLOAD_LEN, new RttEstimator(), new FixedWindowCongestionControl(16));
+            sender.send(MessageSource.of(new byte[5 * 1024]), 2, 0x7f000001, 8007);
+            sender.pump(0);
+            assertEquals(8, sender.getEndSequenceNumber());
+
+            // 2..3 arrived in order, 5 and 7 out of order; 4 and 6 are holes
+            sender.onSelectiveAck(3, 4, 0b101L, 10);
+            assertFalse(sender.isDone());
+            drain(router);
+
+            sender.pump(100000);
+            assertEquals(2, drain(router));
+
+            sender.onSelectiveAck(6, 8, 0L, 100010);
+            assertTrue(sender.isDone());
+            sender.close();
+        }
+    }
+
+    public void testThreeLaterAcksTriggerFastRetransmit() throws IOException
+    {
+        try (DatagramChannel channel = DatagramChannel.open();
+             DatagramChannel router = DatagramChannel.open()) {
+            router.bind(new InetSocketAddress("localhost", 0));
+            router.configureBlocking(false);
+
+            NewRenoCongestionControl congestion = new NewRenoCongestionControl(16);
+            SelectiveRepeatSender sender = new SelectiveRepeatSender(channel, router.getLocalAddress(),
+                    Packet.DEFAULT_PAYLOAD_LEN, new RttEstimator(), congestion);
+            sender.send(MessageSource.of(new byte[10 * 1024]), 2, 0x7f000001, 8007);
+            sender.pump(0);
+            assertEquals(NewRenoCongestionControl.INITIAL_WINDOW, sender.getInFlight());
+            drain(router);
+
+            // 2 is missing, 3..5 arrived: 2 is resent right away, long before its timer expires,
+            // and the halved window has room for one new packet
+            sender.onSelectiveAck(5, 2, 0b111L, 10);
+            assertTrue(congestion.isInRecovery());
+            assertEquals(2, congestion.getWindow());
+            assertEquals(0, sender.getInFlight());
+            sender.pump(10);
+            assertEquals(2, drain(router));
+            assertEquals(2, sender.getInFlight());
+
+            sender.onSelectiveAck(2, 6, 0L, 20);
+            assertFalse(congestion.isInRecovery());
+            sender.close();
+        }
+    }
+
+    public void testGivingUpIsCounted() throws IOException
+    {
+        try (DatagramChannel channel = DatagramChannel.open();
+             DatagramChannel router = DatagramChannel.open()) {
+            router.bind(new InetSocketAddress("localhost", 0));
+            router.configureBlocking(false);
+
+            SelectiveRepeatSender sender = new SelectiveRepeatSender(channel, router.getLocalAddress(),
+                    Packet.DEFAULT_PAYLOAD_LEN, new RttEstimator(), new FixedWindowCongestionControl(16));
+            TransferStats stats = new TransferStats();
+            sender.setStats(stats);
+            sender.send(MessageSource.of(new byte[100]), 2, 0x7f000001, 8007);
+            // Nothing is ever acknowledged, so every pump finds the packets expired
+            long now = 0;
+            for (int i = 0; i <= 2 * SelectiveRepeatSender.MAX_RETRIES && !sender.hasFailed(); i++) {
+                sender.pump(now);
+                now += 1000000000L;
+            }
+            assertTrue(sender.hasFailed());
+            assertEquals(1, stats.getAbandonedTransfers());
+            sender.close();
+        }
+    }
+
+    private static int drain(DatagramChannel channel) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        int count = 0;
+        long deadline = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < deadline) {
+            buf.clear();
+            if (channel.receive(buf) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,162 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ServerConnection.
+ */
+public class ServerConnectionTest 
+    extends TestCase
+{
+    private static final int CLIENT_PORT = 41000;
+
+    private DatagramChannel channel;
+    private DatagramChannel router;
+    private SocketAddress routerAddress;
+    private final httpfs failing = new httpfs(".", false) {
+        @Override
+        MessageSource respond(RequestSink request) throws IOException
+        {
+            request.close();
+            throw new IOException("disk gone");
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        channel = DatagramChannel.open().bind(new InetSocketAddress("localhost", 0));
+        router = DatagramChannel.open().bind(new InetSocketAddress("localhost", 0));
+        routerAddress = router.getLocalAddress();
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        channel.close();
+        router.close();
+    }
+
+    public void testFailedRequestIsAnsweredWith500() throws Exception
+    {
+        ServerConnection connection = new ServerConnection(channel, routerAddress, failing, syn());
+        connection.onPacket(routerAddress, packet(Packet.PacketType.DATA, 2, "GET /a HTTP/1.0\r\n\r\n"), 0);
+        connection.onPacket(routerAddress, packet(Packet.PacketType.FIN, 3, "FIN"), 0);
+        assertEquals(ServerConnection.State.SENDING, connection.getState());
+        assertTrue(receiveResponse().startsWith("HTTP/1.0 500 Internal Server Error"));
+        connection.close();
+    }
+
+    public void testPacketsAfterCloseAreIgnored() throws Exception
+    {
+        ServerConnection connection = new ServerConnection(channel, routerAddress, failing, syn());
+        connection.onPacket(routerAddress, packet(Packet.PacketType.DATA, 2, "GET /a HTTP/1.0\r\n\r\n"), 0);
+        // What the event loop does with a connection whose handler threw
+        connection.close();
+
+        // A retransmitted FIN must not reach the released ACK buffer
+        connection.onPacket(routerAddress, packet(Packet.PacketType.FIN, 3, "FIN"), 1);
+        assertEquals(ServerConnection.State.CLOSED, connection.getState());
+        assertTrue(connection.isReleased());
+    }
+
+    public void testFailedWorkerIsAnsweredWith500() throws Exception
+    {
+        TransferStats stats = new TransferStats();
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        RequestExecutor executor = new RequestExecutor(workers, 4);
+        CountDownLatch done = new CountDownLatch(1);
+        RequestExecutor.Loop loop = executor.newLoop(done::countDown);
+        try {
+            ServerConnection connection = new ServerConnection(channel, routerAddress, failing, syn(),
+                    Packet.DEFAULT_PAYLOAD_LEN, 0,
+                    () -> new NewRenoCongestionControl(SelectiveRepeatSender.DEFAULT_WINDOW_SIZE), stats, loop);
+            connection.onPacket(routerAddress, packet(Packet.PacketType.DATA, 2, "GET /a HTTP/1.0\r\n\r\n"), 0);
+            connection.onPacket(routerAddress, packet(Packet.PacketType.FIN, 3, "FIN"), 0);
+            assertEquals(ServerConnection.State.PROCESSING, connection.getState());
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            RequestExecutor.Completion completion = loop.poll();
+            assertNotNull(completion.response);
+            connection.onResponse(completion.response, 1);
+            assertEquals(ServerConnection.State.SENDING, connection.getState());
+            assertTrue(receiveResponse().startsWith("HTTP/1.0 500 Internal Server Error"));
+            assertEquals(1, executor.getFailed());
+            assertEquals(1, stats.getFailedRequests());
+            connection.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testPacketsAreCounted() throws Exception
+    {
+        TransferStats stats = new TransferStats();
+        ServerConnection connection = new ServerConnection(channel, routerAddress, failing, syn(),
+                Packet.DEFAULT_PAYLOAD_LEN, 0,
+                () -> new NewRenoCongestionControl(SelectiveRepeatSender.DEFAULT_WINDOW_SIZE), stats, null);
+        connection.onPacket(routerAddress, packet(Packet.PacketType.SYNACK, 1, "SYNACK"), 0);
+        assertEquals(1, stats.getInvalidPackets());
+
+        connection.onPacket(routerAddress, packet(Packet.PacketType.DATA, 2, "GET /a HTTP/1.0\r\n\r\n"), 0);
+        assertEquals(0, stats.getMessagesReceived());
+        connection.onPacket(routerAddress, packet(Packet.PacketType.FIN, 3, "FIN"), 0);
+        assertEquals(1, stats.getMessagesReceived());
+        assertEquals(2, stats.getPacketsReceived());
+        connection.close();
+    }
+
+    /**
+     * Payload of the first response DATA packet the router got, skipping the ACKs of the request.
+     */
+    private String receiveResponse() throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_DATAGRAM_LEN);
+        while (true) {
+            buf.clear();
+            router.receive(buf);
+            buf.flip();
+            PacketView view = new PacketView().wrap(buf);
+            if (view.getType() == Packet.PacketType.DATA) {
+                byte[] payload = new byte[view.getPayloadLength()];
+                view.copyPayload(payload, 0);
+                return new String(payload, UTF_8);
+            }
+        }
+    }
+
+    private static PacketView syn() throws IOException
+    {
+        return packet(Packet.PacketType.SYN, 0, new Handshake(7, Handshake.KEEP_ALIVE, Packet.DEFAULT_PAYLOAD_LEN, 0).toBytes());
+    }
+
+    private static PacketView packet(Packet.PacketType type, long sequenceNumber, String payload) throws IOException
+    {
+        return packet(type, sequenceNumber, payload.getBytes(UTF_8));
+    }
+
+    private static PacketView packet(Packet.PacketType type, long sequenceNumber, byte[] payload) throws IOException
+    {
+        Packet packet = new Packet.Builder()
+                .setType(type)
+                .setSequenceNumber(sequenceNumber)
+                .setPeerAddress(InetAddress.getLoopbackAddress())
+                .setPortNumber(CLIENT_PORT)
+                .setPayload(payload)
+                .create();
+        return new PacketView().wrap(packet.toBuffer());
+    }
+}
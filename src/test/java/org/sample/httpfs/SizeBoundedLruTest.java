@@ -0,0 +1,37 @@
+package org.sample.httpfs;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for SizeBoundedLru.
+ */
+public class SizeBoundedLruTest 
+    extends TestCase
+{
+    public void testEvictsLeastRecentlyUsedToFit()
+    {
+        SizeBoundedLru<String, String> lru = new SizeBoundedLru<>(10, String::length);
+        lru.put("a", "aaaa");
+        lru.put("b", "bbbb");
+        lru.get("a");
+        lru.put("c", "cccc");
+
+        assertNull(lru.get("b"));
+        assertNotNull(lru.get("a"));
+        assertEquals(8, lru.getBytes());
+        assertEquals(1, lru.getEvictions());
+    }
+
+    public void testReplaceAndRemoveKeepTheTotal()
+    {
+        SizeBoundedLru<String, String> lru = new SizeBoundedLru<>(10, String::length);
+        lru.put("a", "aaaa");
+        lru.put("a", "aa");
+        assertEquals(2, lru.getBytes());
+
+        assertTrue(lru.remove("a"));
+        assertFalse(lru.remove("a"));
+        assertEquals(0, lru.getBytes());
+        assertEquals(0, lru.size());
+    }
+}
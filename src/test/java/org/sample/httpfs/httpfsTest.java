@@ -0,0 +1,96 @@
+package org.sample.httpfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for httpfs.
+ */
+public class httpfsTest 
+    extends TestCase
+{
+    private static final long MODIFIED = 1500000000000L;
+
+    private Path directory;
+    private httpfs fileServer;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("httpfs");
+        Path file = Files.write(directory.resolve("a.txt"), "aaa".getBytes(UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED));
+        fileServer = new httpfs(directory.toString(), false);
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public void testFileResponseCarriesValidators() throws IOException
+    {
+        Response response = get("");
+
+        assertEquals(200, response.getStatus());
+        assertEquals(httpfs.etag(3, MODIFIED), response.getHeader("ETag"));
+        assertEquals(httpfs.httpDate(MODIFIED), response.getHeader("Last-Modified"));
+        assertEquals("aaa", response.getBodyText());
+    }
+
+    public void testMatchingEtagIsNotModified() throws IOException
+    {
+        Response response = get("If-None-Match: " + httpfs.etag(3, MODIFIED) + "\r\n");
+
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getBody().remaining());
+    }
+
+    public void testEtagWinsOverDate() throws IOException
+    {
+        Response response = get("If-None-Match: \"other\"\r\nIf-Modified-Since: " + httpfs.httpDate(MODIFIED) + "\r\n");
+
+        assertEquals(200, response.getStatus());
+    }
+
+    public void testIfModifiedSince() throws IOException
+    {
+        assertEquals(304, get("If-Modified-Since: " + httpfs.httpDate(MODIFIED) + "\r\n").getStatus());
+        assertEquals(200, get("If-Modified-Since: " + httpfs.httpDate(MODIFIED - 1000) + "\r\n").getStatus());
+        assertEquals(200, get("If-Modified-Since: yesterday\r\n").getStatus());
+    }
+
+    public void testPostWithoutSinkIsBadRequest() throws IOException
+    {
+        Response response = parse(fileServer.respond("POST /b.txt HTTP/1.0\r\n\r\nbbb"));
+
+        assertEquals(400, response.getStatus());
+        assertFalse(Files.exists(directory.resolve("b.txt")));
+    }
+
+    private Response get(String headers) throws IOException
+    {
+        return parse(fileServer.respond("GET /a.txt HTTP/1.0\r\n" + headers + "\r\n"));
+    }
+
+    private static Response parse(MessageSource source) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate((int) source.length());
+        source.read(buf, 0);
+        source.close();
+        buf.flip();
+        return Response.parse(buf);
+    }
+}